@@ -0,0 +1,116 @@
+package net.collegeman.phpinjava.benchmarks;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+import net.collegeman.phpinjava.*;
+
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The overhead of calling PHP functions and methods from Java.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CallBenchmark {
+
+	private PHP php;
+
+	private PHPFunction noArgs;
+
+	private PHPFunction oneArg;
+
+	private PHPFunction manyArgs;
+
+	private PHPObject repeater;
+
+	private PHPMethod repeat;
+
+	@Setup
+	public void setUp() {
+		php = new PHP("classpath:/com/faux/php/HelloWorldClass.php");
+		php.snippet("<?php function no_args() { return 1; } "
+			+ "function one_arg($a) { return $a; } "
+			+ "function many_args($a, $b, $c, $d, $e, $f, $g, $h) { return $h; }");
+
+		noArgs = php.function("no_args");
+		oneArg = php.function("one_arg");
+		manyArgs = php.function("many_args");
+
+		repeater = php.newInstance("Repeater", "Hello, world!");
+		repeat = repeater.method("repeat");
+	}
+
+	@Benchmark
+	public PHPObject fxNoArgs() {
+		return php.fx("no_args");
+	}
+
+	@Benchmark
+	public PHPObject fxOneArg() {
+		return php.fx("one_arg", "Hello, world!");
+	}
+
+	@Benchmark
+	public PHPObject fxManyArgs() {
+		return php.fx("many_args", 1, 2, 3, 4, 5, 6, 7, "Hello, world!");
+	}
+
+	@Benchmark
+	public PHPObject functionNoArgs() {
+		return noArgs.call();
+	}
+
+	@Benchmark
+	public PHPObject functionOneArg() {
+		return oneArg.call("Hello, world!");
+	}
+
+	@Benchmark
+	public PHPObject functionManyArgs() {
+		return manyArgs.call(1, 2, 3, 4, 5, 6, 7, "Hello, world!");
+	}
+
+	@Benchmark
+	public PHPObject newInstance() {
+		return php.newInstance("Repeater", "Hello, world!");
+	}
+
+	@Benchmark
+	public PHPObject newInstanceAndInvokeMethod() {
+		return php.newInstance("Repeater", "Hello, world!").invokeMethod("repeat");
+	}
+
+	@Benchmark
+	public PHPObject invokeMethod() {
+		return repeater.invokeMethod("repeat");
+	}
+
+	@Benchmark
+	public PHPObject methodHandle() {
+		return repeat.call();
+	}
+
+}
@@ -0,0 +1,56 @@
+package net.collegeman.phpinjava.benchmarks;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+import net.collegeman.phpinjava.groovy.*;
+
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The overhead of dynamic dispatch through <code>GroovyPHP</code>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GroovyBenchmark {
+
+	private GroovyPHP php;
+
+	@Setup
+	public void setUp() {
+		php = new GroovyPHP("classpath:/com/faux/php/HelloWorldFx.php");
+	}
+
+	@Benchmark
+	public Object invokeMethod() {
+		return php.invokeMethod("get", "message");
+	}
+
+	@Benchmark
+	public Object fx() {
+		return php.fx("repeat", "Hello, world!");
+	}
+
+}
@@ -0,0 +1,56 @@
+package net.collegeman.phpinjava.benchmarks;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+import net.collegeman.phpinjava.*;
+
+import java.util.concurrent.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The cost of generating output and extracting it with <code>toString()</code>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OutputBenchmark {
+
+	@Param({ "16", "1048576" })
+	public int size;
+
+	private PHP php;
+
+	@Setup
+	public void setUp() {
+		php = new PHP().snippet("<?php function render($size) { echo str_repeat('x', $size); }");
+	}
+
+	@Benchmark
+	public String renderAndToString() {
+		php.clear();
+		php.fx("render", size);
+		return php.toString();
+	}
+
+}
@@ -0,0 +1,270 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * <p>Calls into PHP without blocking the calling thread. Every call is run on a thread of this
+ * <code>AsyncPHP</code>'s own, and its result is delivered through a <code>CompletableFuture</code>.</p>
+ * <p>Wrapped around a single instance of <code>PHP</code>, calls run one at a time, in the order they
+ * were made, on a single thread: the environment of the instance is never used by two threads at
+ * once, so all calls to the instance must go through this <code>AsyncPHP</code>. Wrapped around a
+ * {@link PHPPool}, calls run in parallel, each on an instance borrowed for the length of the call.</p>
+ * <pre>
+ * AsyncPHP async = new AsyncPHP(new PHP("classpath:/path/to/script.php"))
+ *   .setTimeout(2, TimeUnit.SECONDS);
+ *
+ * async.fx("render", model).thenAccept(html -> send(html.toString()));
+ * </pre>
+ * <p>Threads are created by a <code>ThreadFactory</code>, which may well create virtual threads, e.g.,
+ * <code>Thread.ofVirtual().factory()</code> on Java 21.</p>
+ * @author Aaron Collegeman aaron@collegeman.net
+ */
+public class AsyncPHP {
+
+	private static final ThreadFactory DEFAULT_THREAD_FACTORY = daemonThreads("php-async-");
+
+	private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, daemonThreads("php-async-timeout-"));
+
+	static {
+		timer.setRemoveOnCancelPolicy(true);
+	}
+
+	private static ThreadFactory daemonThreads(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, prefix + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	private final PHP php;
+
+	private final PHPPool pool;
+
+	private final ExecutorService executor;
+
+	private volatile long timeoutMillis = 0;
+
+	/**
+	 * Run calls to <code>php</code> one at a time, on a daemon thread.
+	 */
+	public AsyncPHP(PHP php) {
+		this(php, DEFAULT_THREAD_FACTORY);
+	}
+
+	/**
+	 * Run calls to <code>php</code> one at a time, on a thread created by <code>threadFactory</code>.
+	 */
+	public AsyncPHP(PHP php, ThreadFactory threadFactory) {
+		if (php == null)
+			throw new IllegalArgumentException("[php] parameter must be defined");
+
+		if (threadFactory == null)
+			throw new IllegalArgumentException("[threadFactory] parameter must be defined");
+
+		this.php = php;
+		this.pool = null;
+		this.executor = Executors.newSingleThreadExecutor(threadFactory);
+	}
+
+	/**
+	 * Run calls on instances borrowed from <code>pool</code>, as many at once as the pool allows, on daemon threads.
+	 */
+	public AsyncPHP(PHPPool pool) {
+		this(pool, DEFAULT_THREAD_FACTORY);
+	}
+
+	/**
+	 * Run calls on instances borrowed from <code>pool</code>, as many at once as the pool allows, on
+	 * threads created by <code>threadFactory</code>.
+	 */
+	public AsyncPHP(PHPPool pool, ThreadFactory threadFactory) {
+		if (pool == null)
+			throw new IllegalArgumentException("[pool] parameter must be defined");
+
+		if (threadFactory == null)
+			throw new IllegalArgumentException("[threadFactory] parameter must be defined");
+
+		this.php = null;
+		this.pool = pool;
+		this.executor = Executors.newFixedThreadPool(pool.getMaxSize(), threadFactory);
+	}
+
+	/**
+	 * Limit every call made from now on to <code>timeout</code>, counted from the moment the call is
+	 * made. A call that runs out of time before it starts is cancelled, and its future fails with a 
+	 * <code>TimeoutException</code> right away. A call already running is stopped by its deadline at 
+	 * its next loop iteration or function call, without interrupting its thread, and its future fails 
+	 * once it has actually stopped; an instance borrowed from a pool is then discarded rather than 
+	 * returned to it. A value of zero, the default, means no limit.
+	 * @return This instance of <code>AsyncPHP</code>, to support method chaining.
+	 */
+	public AsyncPHP setTimeout(long timeout, TimeUnit unit) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("[timeout] parameter must not be negative");
+		timeoutMillis = unit.toMillis(timeout);
+		return this;
+	}
+
+	/**
+	 * Call the PHP function named <code>fxName</code> with arguments <code>args</code>.
+	 * @see PHP#fx(String, Object...)
+	 */
+	public CompletableFuture<PHPObject> fx(final String fxName, final Object ... args) {
+		return submit(new Function<PHP, PHPObject>() {
+			public PHPObject apply(PHP php) {
+				return php.fx(fxName, args);
+			}
+		});
+	}
+
+	/**
+	 * Create a new instance of the PHP class <code>className</code>, initialized with arguments <code>args</code>.
+	 * @see PHP#newInstance(String, Object...)
+	 */
+	public CompletableFuture<PHPObject> newInstance(final String className, final Object ... args) {
+		return submit(new Function<PHP, PHPObject>() {
+			public PHPObject apply(PHP php) {
+				return php.newInstance(className, args);
+			}
+		});
+	}
+
+	/**
+	 * Invoke the method <code>name</code> of <code>object</code>, an object obtained from the instance
+	 * of <code>PHP</code> wrapped by this <code>AsyncPHP</code>. Not available when wrapping a pool,
+	 * whose objects don't stay with any one instance.
+	 * @see PHPObject#invokeMethod(String, Object...)
+	 * @throws IllegalStateException When this <code>AsyncPHP</code> wraps a pool
+	 */
+	public CompletableFuture<PHPObject> invokeMethod(final PHPObject object, final String name, final Object ... args) {
+		if (php == null)
+			throw new IllegalStateException("Objects can't be called back through a pool");
+
+		return submit(new Function<PHP, PHPObject>() {
+			public PHPObject apply(PHP php) {
+				return object.invokeMethod(name, args);
+			}
+		});
+	}
+
+	/**
+	 * Run <code>task</code> with an instance of <code>PHP</code>, for anything more than a single call.
+	 * The instance must not be used outside of <code>task</code>.
+	 */
+	public <T> CompletableFuture<T> submit(final Function<PHP, T> task) {
+		if (task == null)
+			throw new IllegalArgumentException("[task] parameter must be defined");
+
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		final long timeout = timeoutMillis;
+		final long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+		final AtomicBoolean started = new AtomicBoolean();
+
+		final Future<?> running = executor.submit(new Runnable() {
+			public void run() {
+				if (!started.compareAndSet(false, true))
+					return;
+
+				// the future completes once the instance is given back, so whoever waits on it may 
+				// borrow the instance again right away; it completes whatever goes wrong, errors 
+				// included, since nothing else would ever see what was thrown here
+				PHP php = null;
+				T result = null;
+				Throwable failure = null;
+				try {
+					php = borrow();
+					if (deadline > 0)
+						result = php.withTimeout(Math.max(1, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS, task);
+					else
+						result = task.apply(php);
+				} catch (PHPTimeoutException e) {
+					failure = timedOut(timeout, e);
+				} catch (Throwable e) {
+					failure = e;
+				}
+				if (php != null) {
+					try {
+						giveBack(php);
+					} catch (Throwable e) {
+						if (failure == null)
+							failure = e;
+					}
+				}
+				if (failure != null)
+					future.completeExceptionally(failure);
+				else
+					future.complete(result);
+			}
+		});
+
+		if (timeout > 0) {
+			final ScheduledFuture<?> expiry = timer.schedule(new Runnable() {
+				public void run() {
+					// a call that started is left to its deadline: interrupting it would close any
+					// channel it's reading or writing, and leave its instance in use after it failed
+					if (started.compareAndSet(false, true)) {
+						running.cancel(false);
+						future.completeExceptionally(timedOut(timeout, null));
+					}
+				}
+			}, timeout, TimeUnit.MILLISECONDS);
+
+			future.whenComplete(new BiConsumer<T, Throwable>() {
+				public void accept(T result, Throwable failure) {
+					expiry.cancel(false);
+				}
+			});
+		}
+
+		return future;
+	}
+
+	private static TimeoutException timedOut(long timeout, Throwable cause) {
+		TimeoutException e = new TimeoutException("PHP call timed out after "+timeout+" ms");
+		if (cause != null)
+			e.initCause(cause);
+		return e;
+	}
+
+	private PHP borrow() {
+		return pool != null ? pool.borrow() : php;
+	}
+
+	private void giveBack(PHP php) {
+		if (pool != null)
+			pool.release(php);
+	}
+
+	/**
+	 * Stop accepting calls. Calls already made still run.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+	}
+
+}
@@ -0,0 +1,181 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+import com.caucho.vfs.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/**
+ * A path to a resource on the classpath of a <code>ClassLoader</code>, e.g., a PHP page packaged in a jar.
+ * Paths are resolved the way file paths are, relative to the directory of the path they are looked
+ * up from, and absolute paths name resources from the root of the classpath, so a directory of PHP 
+ * packaged in a jar can include its pages as it would from disk. Resources are read-only.
+ */
+class ClasspathPath extends FilesystemPath {
+
+	static final String SCHEME = "classpath";
+
+	private final ClassLoader classLoader;
+
+	/**
+	 * The resource, its size and the time it was last modified, looked up on first use.
+	 */
+	private URL resource;
+
+	private boolean directory;
+
+	private long length;
+
+	private long lastModified;
+
+	private boolean resolved;
+
+	/**
+	 * Create the root of the classpath of <code>classLoader</code>.
+	 */
+	ClasspathPath(ClassLoader classLoader) {
+		super(null, "/", "/");
+		_root = this;
+		this.classLoader = classLoader;
+	}
+
+	private ClasspathPath(FilesystemPath root, String userPath, String path, ClassLoader classLoader) {
+		super(root, userPath, path);
+		this.classLoader = classLoader;
+	}
+
+	public Path fsWalk(String userPath, Map<String, Object> attributes, String path) {
+		return new ClasspathPath(_root, userPath, path, classLoader);
+	}
+
+	/**
+	 * Quercus only includes pages from files and from memory, so a resource passes for the latter: 
+	 * like memory, it's local to the process and can't be rewritten by a script.
+	 */
+	public String getScheme() {
+		return "memory";
+	}
+
+	public String getURL() {
+		return SCHEME + ":" + getPath();
+	}
+
+	/**
+	 * Tell this path apart from the file of the same name.
+	 */
+	public String getNativePath() {
+		return getURL();
+	}
+
+	public boolean exists() {
+		return resolve() != null;
+	}
+
+	public boolean isDirectory() {
+		return resolve() != null && directory;
+	}
+
+	public boolean isFile() {
+		return resolve() != null && !directory;
+	}
+
+	public boolean canRead() {
+		return isFile();
+	}
+
+	public long getLength() {
+		resolve();
+		return length;
+	}
+
+	public long getLastModified() {
+		resolve();
+		return lastModified;
+	}
+
+	public StreamImpl openReadImpl() throws IOException {
+		if (!isFile())
+			throw new FileNotFoundException("No resource on the classpath at ["+getPath()+"]");
+		VfsStream stream = new VfsStream(resource.openStream(), null);
+		stream.setPath(this);
+		return stream;
+	}
+
+	protected Path copy() {
+		return new ClasspathPath(getRoot(), getUserPath(), getPath(), classLoader);
+	}
+
+	public int hashCode() {
+		return getPath().hashCode() * 31 + System.identityHashCode(classLoader);
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof ClasspathPath))
+			return false;
+		ClasspathPath path = (ClasspathPath) o;
+		return classLoader == path.classLoader && getPath().equals(path.getPath());
+	}
+
+	private synchronized URL resolve() {
+		if (!resolved) {
+			resolved = true;
+			String name = getPath().substring(1);
+			if (name.length() > 0) {
+				resource = classLoader.getResource(name);
+				if (resource == null && !name.endsWith("/"))
+					resource = classLoader.getResource(name + "/");
+			}
+			if (resource != null) {
+				try {
+					URLConnection connection = resource.openConnection();
+					directory = isDirectory(resource, connection);
+					lastModified = connection.getLastModified();
+					length = directory ? 0 : connection.getContentLengthLong();
+				} catch (IOException e) {
+					resource = null;
+				}
+			}
+		}
+		return resource;
+	}
+
+	/**
+	 * @return <code>true</code> when <code>resource</code> is a directory, on disk or inside a jar.
+	 */
+	static boolean isDirectory(URL resource, URLConnection connection) throws IOException {
+		if ("file".equals(resource.getProtocol())) {
+			try {
+				return new File(resource.toURI()).isDirectory();
+			} catch (URISyntaxException e) {
+				throw new IOException(e);
+			}
+		}
+		if (connection instanceof JarURLConnection) {
+			JarURLConnection jar = (JarURLConnection) connection;
+			return jar.getJarEntry() == null ? jar.getEntryName() == null : jar.getJarEntry().isDirectory();
+		}
+		return resource.getPath().endsWith("/");
+	}
+
+}
@@ -0,0 +1,209 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+import com.caucho.quercus.*;
+import com.caucho.quercus.env.*;
+import com.caucho.util.*;
+
+/**
+ * <p>Enforces the deadlines of the calls made into an <code>Env</code>. The deadline is handed to
+ * the time limit of the environment, which Quercus checks on every loop iteration and every 
+ * function or method call, so a runaway script is stopped cooperatively, in its own thread, at 
+ * no cost to the calls that finish in time. Call sites go</p>
+ * <pre>
+ * Deadline deadline = Deadline.of(env);
+ * deadline.enter();
+ * try {
+ *   ...
+ * } catch (RuntimeException e) {
+ *   throw deadline.failed(e);
+ * } finally {
+ *   deadline.exit();
+ * }
+ * </pre>
+ * <p>Only the outermost call starts the clock; calls made from Java code that PHP called back 
+ * into share its deadline. Between calls, the time limit is <code>max_execution_time</code>, 
+ * counted from the start of each outermost call.</p>
+ */
+final class Deadline {
+
+	/**
+	 * The name under which the deadline of an environment is kept by it.
+	 */
+	private static final String KEY = Deadline.class.getName();
+
+	private Env env;
+
+	private long defaultLimit;
+
+	private long timeout;
+
+	private long scoped;
+
+	private long scopedTimeout;
+
+	private int depth;
+
+	private long started;
+
+	private long effective;
+
+	private long effectiveTimeout;
+
+	private boolean poisoned;
+
+	/**
+	 * @return The deadline of <code>env</code>, attaching a new one to it if it has none yet.
+	 */
+	static Deadline of(Env env) {
+		Deadline deadline = (Deadline) env.getSpecialValue(KEY);
+		if (deadline == null) {
+			deadline = new Deadline();
+			deadline.attach(env);
+		}
+		return deadline;
+	}
+
+	/**
+	 * Make this the deadline found by {@link #of(Env)} for <code>env</code>.
+	 */
+	void attach(Env env) {
+		this.env = env;
+		this.defaultLimit = env.getIniLong("max_execution_time") * 1000;
+		env.setSpecialValue(KEY, this);
+		if (depth > 0)
+			apply();
+	}
+
+	/**
+	 * Give every outermost call <code>timeout</code> milliseconds, or no time limit but 
+	 * <code>max_execution_time</code> when zero.
+	 */
+	void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Have every call end within <code>timeout</code> milliseconds from now, until {@link #unscope(long[])}.
+	 * @return The deadline in effect until now, for {@link #unscope(long[])}.
+	 */
+	long[] scope(long timeout) {
+		long[] previous = { scoped, scopedTimeout };
+		long until = Alarm.getCurrentTime() + timeout;
+		if (scoped == 0 || until < scoped) {
+			scoped = until;
+			scopedTimeout = timeout;
+		}
+		if (depth > 0)
+			apply();
+		return previous;
+	}
+
+	void unscope(long[] previous) {
+		scoped = previous[0];
+		scopedTimeout = previous[1];
+		if (depth > 0)
+			apply();
+	}
+
+	/**
+	 * @return <code>true</code> while a call into the environment is running.
+	 */
+	boolean isActive() {
+		return depth > 0;
+	}
+
+	/**
+	 * Make sure <code>env</code> is still the environment of this deadline, before a call into it 
+	 * through a handle obtained from it.
+	 * @throws IllegalStateException When <code>env</code> was replaced since, by a reload of its script
+	 */
+	void check(Env env) {
+		if (this.env != env)
+			throw new IllegalStateException("The PHP environment this handle was obtained from was replaced by a reload; obtain the handle again");
+	}
+
+	void enter() {
+		if (depth++ == 0) {
+			started = Alarm.getCurrentTime();
+			env.resetTimeout();
+			apply();
+		}
+	}
+
+	void exit() {
+		if (--depth == 0) {
+			effective = 0;
+			env.setTimeLimit(defaultLimit);
+		}
+	}
+
+	private void apply() {
+		long until = timeout > 0 ? started + timeout : 0;
+		effectiveTimeout = timeout;
+		if (scoped > 0 && (until == 0 || scoped < until)) {
+			until = scoped;
+			effectiveTimeout = scopedTimeout;
+		}
+		effective = until;
+		env.setTimeLimit(until > 0 ? Math.max(1, until - started) : defaultLimit);
+	}
+
+	/**
+	 * @return A <code>PHPTimeoutException</code> in place of <code>e</code> when the call failed 
+	 * because the time limit of its deadline stopped it, or <code>e</code> itself otherwise, even 
+	 * when it failed after its deadline for some other reason.
+	 */
+	RuntimeException failed(RuntimeException e) {
+		if (e instanceof PHPTimeoutException || effective == 0 || !isTimeLimit(e))
+			return e;
+		poisoned = true;
+		return new PHPTimeoutException(effectiveTimeout, e);
+	}
+
+	/**
+	 * The message of the exception <code>Env.checkTimeout()</code> throws when the time limit is up.
+	 */
+	private static final String TIMED_OUT = "script timed out";
+
+	private static boolean isTimeLimit(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof QuercusRuntimeException && cause.getMessage() != null && cause.getMessage().endsWith(TIMED_OUT))
+				return true;
+			if (cause.getCause() == cause)
+				break;
+		}
+		return false;
+	}
+
+	/**
+	 * @return <code>true</code> when a call was stopped part way through since the last {@link #cure()}.
+	 */
+	boolean isPoisoned() {
+		return poisoned;
+	}
+
+	void cure() {
+		poisoned = false;
+	}
+
+}
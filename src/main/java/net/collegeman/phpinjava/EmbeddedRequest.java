@@ -0,0 +1,271 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+
+import javax.servlet.*;
+import javax.servlet.http.*;
+
+/**
+ * The request a <code>PHP</code> instance runs in when it isn't bound to a real one: no headers, 
+ * no parameters, no cookies and no session, only a handful of fixed values for <code>$_SERVER</code>. 
+ * Attributes are the one thing it holds, and their map is only created when one is set.
+ */
+final class EmbeddedRequest implements HttpServletRequest {
+
+	private Map<String, Object> attributes;
+
+	private String characterEncoding;
+
+	public Object getAttribute(String name) {
+		return attributes == null ? null : attributes.get(name);
+	}
+
+	public Enumeration<String> getAttributeNames() {
+		return Collections.enumeration(attributes == null ? Collections.<String>emptySet() : attributes.keySet());
+	}
+
+	public void setAttribute(String name, Object value) {
+		if (value == null) {
+			removeAttribute(name);
+			return;
+		}
+		if (attributes == null)
+			attributes = new HashMap<String, Object>(4);
+		attributes.put(name, value);
+	}
+
+	public void removeAttribute(String name) {
+		if (attributes != null)
+			attributes.remove(name);
+	}
+
+	public String getCharacterEncoding() {
+		return characterEncoding;
+	}
+
+	public void setCharacterEncoding(String characterEncoding) throws UnsupportedEncodingException {
+		this.characterEncoding = characterEncoding;
+	}
+
+	public int getContentLength() {
+		return -1;
+	}
+
+	public String getContentType() {
+		return null;
+	}
+
+	public ServletInputStream getInputStream() throws IOException {
+		return new ServletInputStream() {
+			public int read() {
+				return -1;
+			}
+		};
+	}
+
+	public BufferedReader getReader() throws IOException {
+		return new BufferedReader(new StringReader(""));
+	}
+
+	public String getParameter(String name) {
+		return null;
+	}
+
+	public Enumeration<String> getParameterNames() {
+		return Collections.enumeration(Collections.<String>emptySet());
+	}
+
+	public String[] getParameterValues(String name) {
+		return null;
+	}
+
+	public Map<String, String[]> getParameterMap() {
+		return Collections.emptyMap();
+	}
+
+	public String getProtocol() {
+		return "HTTP/1.1";
+	}
+
+	public String getScheme() {
+		return "http";
+	}
+
+	public String getServerName() {
+		return "localhost";
+	}
+
+	public int getServerPort() {
+		return 80;
+	}
+
+	public String getRemoteAddr() {
+		return "127.0.0.1";
+	}
+
+	public String getRemoteHost() {
+		return "localhost";
+	}
+
+	public int getRemotePort() {
+		return 80;
+	}
+
+	public String getLocalName() {
+		return "localhost";
+	}
+
+	public String getLocalAddr() {
+		return "127.0.0.1";
+	}
+
+	public int getLocalPort() {
+		return 80;
+	}
+
+	public Locale getLocale() {
+		return Locale.ENGLISH;
+	}
+
+	public Enumeration<Locale> getLocales() {
+		return Collections.enumeration(Collections.singleton(Locale.ENGLISH));
+	}
+
+	public boolean isSecure() {
+		return false;
+	}
+
+	public RequestDispatcher getRequestDispatcher(String path) {
+		return null;
+	}
+
+	/**
+	 * There's no web application to resolve <code>path</code> in, so it is resolved against the working directory.
+	 */
+	public String getRealPath(String path) {
+		return new File(System.getProperty("user.dir"), path).getAbsolutePath();
+	}
+
+	public String getAuthType() {
+		return null;
+	}
+
+	public Cookie[] getCookies() {
+		return null;
+	}
+
+	public long getDateHeader(String name) {
+		return -1;
+	}
+
+	public String getHeader(String name) {
+		return null;
+	}
+
+	public Enumeration<String> getHeaders(String name) {
+		return Collections.enumeration(Collections.<String>emptySet());
+	}
+
+	public Enumeration<String> getHeaderNames() {
+		return Collections.enumeration(Collections.<String>emptySet());
+	}
+
+	public int getIntHeader(String name) {
+		return -1;
+	}
+
+	public String getMethod() {
+		return "";
+	}
+
+	public String getPathInfo() {
+		return null;
+	}
+
+	public String getPathTranslated() {
+		return null;
+	}
+
+	public String getContextPath() {
+		return "";
+	}
+
+	public String getQueryString() {
+		return null;
+	}
+
+	public String getRemoteUser() {
+		return null;
+	}
+
+	public boolean isUserInRole(String role) {
+		return false;
+	}
+
+	public Principal getUserPrincipal() {
+		return null;
+	}
+
+	public String getRequestedSessionId() {
+		return null;
+	}
+
+	public String getRequestURI() {
+		return "";
+	}
+
+	public StringBuffer getRequestURL() {
+		return new StringBuffer("http://localhost");
+	}
+
+	public String getServletPath() {
+		return "";
+	}
+
+	public HttpSession getSession(boolean create) {
+		return null;
+	}
+
+	public HttpSession getSession() {
+		return null;
+	}
+
+	public boolean isRequestedSessionIdValid() {
+		return false;
+	}
+
+	public boolean isRequestedSessionIdFromCookie() {
+		return false;
+	}
+
+	public boolean isRequestedSessionIdFromURL() {
+		return false;
+	}
+
+	public boolean isRequestedSessionIdFromUrl() {
+		return false;
+	}
+
+}
@@ -0,0 +1,211 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+import java.io.*;
+import java.util.*;
+
+import javax.servlet.*;
+import javax.servlet.http.*;
+
+/**
+ * The response a <code>PHP</code> instance writes to when it isn't bound to a real one. Headers
+ * and cookies are discarded; only the status, content type and character encoding are kept.
+ * Output written to it goes straight to the output channel of the instance.
+ */
+final class EmbeddedResponse implements HttpServletResponse {
+
+	private final OutputStream output;
+
+	private ServletOutputStream outputStream;
+
+	private PrintWriter writer;
+
+	private int status = SC_OK;
+
+	private String contentType;
+
+	private String characterEncoding = "ISO-8859-1";
+
+	private Locale locale = Locale.getDefault();
+
+	private boolean committed;
+
+	EmbeddedResponse(OutputStream output) {
+		this.output = output;
+	}
+
+	/**
+	 * @return The status set by the script, <code>200</code> unless it set another.
+	 */
+	int getStatus() {
+		return status;
+	}
+
+	public void setContentType(String contentType) {
+		this.contentType = contentType;
+		int charset = contentType == null ? -1 : contentType.toLowerCase(Locale.ENGLISH).indexOf("charset=");
+		if (charset >= 0)
+			characterEncoding = contentType.substring(charset + 8).trim();
+	}
+
+	public String getContentType() {
+		return contentType;
+	}
+
+	public void setCharacterEncoding(String characterEncoding) {
+		this.characterEncoding = characterEncoding;
+	}
+
+	public String getCharacterEncoding() {
+		return characterEncoding;
+	}
+
+	public ServletOutputStream getOutputStream() throws IOException {
+		if (outputStream == null) {
+			outputStream = new ServletOutputStream() {
+				public void write(int b) throws IOException {
+					output.write(b);
+				}
+
+				public void write(byte[] bytes, int offset, int length) throws IOException {
+					output.write(bytes, offset, length);
+				}
+
+				public void flush() throws IOException {
+					output.flush();
+				}
+			};
+		}
+		return outputStream;
+	}
+
+	public PrintWriter getWriter() throws IOException {
+		if (writer == null)
+			writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), characterEncoding));
+		return writer;
+	}
+
+	public void setContentLength(int length) {
+	}
+
+	public void setBufferSize(int size) {
+	}
+
+	public int getBufferSize() {
+		return 0;
+	}
+
+	public void flushBuffer() throws IOException {
+		if (writer != null)
+			writer.flush();
+		output.flush();
+		committed = true;
+	}
+
+	public void resetBuffer() {
+	}
+
+	public boolean isCommitted() {
+		return committed;
+	}
+
+	/**
+	 * Forget the status, content type and character encoding set by the script.
+	 */
+	public void reset() {
+		status = SC_OK;
+		contentType = null;
+		characterEncoding = "ISO-8859-1";
+		committed = false;
+	}
+
+	public void setLocale(Locale locale) {
+		this.locale = locale;
+	}
+
+	public Locale getLocale() {
+		return locale;
+	}
+
+	public void addCookie(Cookie cookie) {
+	}
+
+	public boolean containsHeader(String name) {
+		return false;
+	}
+
+	public String encodeURL(String url) {
+		return url;
+	}
+
+	public String encodeRedirectURL(String url) {
+		return url;
+	}
+
+	public String encodeUrl(String url) {
+		return url;
+	}
+
+	public String encodeRedirectUrl(String url) {
+		return url;
+	}
+
+	public void sendError(int status) throws IOException {
+		setStatus(status);
+		committed = true;
+	}
+
+	public void sendError(int status, String message) throws IOException {
+		sendError(status);
+	}
+
+	public void sendRedirect(String location) throws IOException {
+		sendError(SC_MOVED_TEMPORARILY);
+	}
+
+	public void setDateHeader(String name, long date) {
+	}
+
+	public void addDateHeader(String name, long date) {
+	}
+
+	public void setHeader(String name, String value) {
+	}
+
+	public void addHeader(String name, String value) {
+	}
+
+	public void setIntHeader(String name, int value) {
+	}
+
+	public void addIntHeader(String name, int value) {
+	}
+
+	public void setStatus(int status) {
+		this.status = status;
+	}
+
+	public void setStatus(int status, String message) {
+		setStatus(status);
+	}
+
+}
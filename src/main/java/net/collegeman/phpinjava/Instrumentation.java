@@ -0,0 +1,188 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+import com.caucho.quercus.env.*;
+
+import java.util.logging.*;
+
+/**
+ * Hands measurements to the {@link PHPListener}s of a {@link PHPEngine}. Every method returns right
+ * away, without allocating, while there are no listeners; so call sites measure unconditionally:
+ * <pre>
+ * long start = instrumentation.start();
+ * boolean failed = true;
+ * try {
+ *   ...
+ *   failed = false;
+ * } finally {
+ *   instrumentation.functionCalled(name, start, failed);
+ * }
+ * </pre>
+ */
+final class Instrumentation {
+
+	private static final Logger log = Logger.getLogger(Instrumentation.class.getName());
+
+	/**
+	 * The name under which the instrumentation of an engine is kept by the environments it creates.
+	 */
+	private static final String KEY = Instrumentation.class.getName();
+
+	private static final PHPListener[] NONE = new PHPListener[0];
+
+	/**
+	 * Stands in for the instrumentation of environments not created by an instance of <code>PHP</code>.
+	 */
+	private static final Instrumentation DISABLED = new Instrumentation();
+
+	private volatile PHPListener[] listeners = NONE;
+
+	/**
+	 * @return The instrumentation of the engine that created <code>env</code>, or one that is 
+	 * always disabled when <code>env</code> wasn't created by an instance of <code>PHP</code>.
+	 */
+	static Instrumentation of(Env env) {
+		Instrumentation instrumentation = (Instrumentation) env.getSpecialValue(KEY);
+		return instrumentation != null ? instrumentation : DISABLED;
+	}
+
+	/**
+	 * Make this the instrumentation found by {@link #of(Env)} for <code>env</code>.
+	 */
+	void attach(Env env) {
+		env.setSpecialValue(KEY, this);
+	}
+
+	synchronized void add(PHPListener listener) {
+		PHPListener[] added = new PHPListener[listeners.length + 1];
+		System.arraycopy(listeners, 0, added, 0, listeners.length);
+		added[listeners.length] = listener;
+		listeners = added;
+	}
+
+	synchronized void remove(PHPListener listener) {
+		for (int i=0; i<listeners.length; i++) {
+			if (listeners[i] == listener) {
+				PHPListener[] removed = new PHPListener[listeners.length - 1];
+				System.arraycopy(listeners, 0, removed, 0, i);
+				System.arraycopy(listeners, i + 1, removed, i, removed.length - i);
+				listeners = removed.length > 0 ? removed : NONE;
+				return;
+			}
+		}
+	}
+
+	boolean isEnabled() {
+		return listeners.length > 0;
+	}
+
+	/**
+	 * @return The time to measure from, or zero when nothing is listening.
+	 */
+	long start() {
+		return listeners.length > 0 ? System.nanoTime() : 0;
+	}
+
+	void pageParsed(String page, long start) {
+		if (start == 0)
+			return;
+		long nanos = System.nanoTime() - start;
+		for (PHPListener listener : listeners) {
+			try {
+				listener.pageParsed(page, nanos);
+			} catch (RuntimeException e) {
+				log.log(Level.WARNING, "PHPListener failed", e);
+			}
+		}
+	}
+
+	void pageExecuted(String page, Env env, long start) {
+		if (start == 0)
+			return;
+		long nanos = System.nanoTime() - start;
+		long memoryEstimate = estimateMemory(env);
+		for (PHPListener listener : listeners) {
+			try {
+				listener.pageExecuted(page, nanos, memoryEstimate);
+			} catch (RuntimeException e) {
+				log.log(Level.WARNING, "PHPListener failed", e);
+			}
+		}
+	}
+
+	void functionCalled(String name, long start, boolean failed) {
+		if (start == 0)
+			return;
+		long nanos = System.nanoTime() - start;
+		for (PHPListener listener : listeners) {
+			try {
+				listener.functionCalled(name, nanos, failed);
+			} catch (RuntimeException e) {
+				log.log(Level.WARNING, "PHPListener failed", e);
+			}
+		}
+	}
+
+	void methodCalled(Value object, String name, long start, boolean failed) {
+		if (start == 0)
+			return;
+		long nanos = System.nanoTime() - start;
+		String className = object.getClassName();
+		for (PHPListener listener : listeners) {
+			try {
+				listener.methodCalled(className, name, nanos, failed);
+			} catch (RuntimeException e) {
+				log.log(Level.WARNING, "PHPListener failed", e);
+			}
+		}
+	}
+
+	void outputWritten(int bytes) {
+		for (PHPListener listener : listeners) {
+			try {
+				listener.outputWritten(bytes);
+			} catch (RuntimeException e) {
+				log.log(Level.WARNING, "PHPListener failed", e);
+			}
+		}
+	}
+
+	/**
+	 * Roughly estimate the memory held by the global variables of <code>env</code>, without looking
+	 * inside arrays and objects, so that the estimate costs no more than the number of globals.
+	 */
+	static long estimateMemory(Env env) {
+		long bytes = 0;
+		for (Var var : env.getGlobalEnv().values()) {
+			Value value = var.toValue();
+			bytes += 48;
+			if (value.isString())
+				bytes += 40 + 2L * value.length();
+			else if (value.isArray())
+				bytes += 64 + 64L * value.getSize();
+			else if (value.isObject())
+				bytes += 64 + 32L * value.getSize();
+			else
+				bytes += 16;
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,65 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+import com.caucho.vfs.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * A <code>StreamImpl</code> reading the file at a path through a read-only memory mapping, so that the
+ * parser pulls a large source straight out of the page cache of the operating system instead
+ * of copying it through a <code>FileInputStream</code> one buffer at a time.
+ */
+class MappedFileStream extends StreamImpl {
+
+	private final ByteBuffer buffer;
+
+	MappedFileStream(com.caucho.vfs.Path path) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(path.getNativePath()), StandardOpenOption.READ);
+		try {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			channel.close();
+		}
+		setPath(path);
+	}
+
+	public boolean canRead() {
+		return true;
+	}
+
+	public int read(byte[] bytes, int offset, int length) throws IOException {
+		if (!buffer.hasRemaining())
+			return -1;
+		int count = Math.min(length, buffer.remaining());
+		buffer.get(bytes, offset, count);
+		return count;
+	}
+
+	public int getAvailable() throws IOException {
+		return buffer.remaining();
+	}
+
+}
@@ -0,0 +1,169 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+import com.caucho.quercus.env.*;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * Moves values between Java and PHP without reflection wherever the type is known up front.
+ * Primitives and strings become native PHP scalars, and Java maps, lists and arrays become
+ * PHP arrays whose elements are only converted when PHP reads them.
+ */
+final class Marshal {
+
+	private Marshal() {}
+
+	/**
+	 * @see PHP#toValue(Env, Object)
+	 */
+	static Value toValue(Env env, Object obj) {
+		if (obj == null)
+			return NullValue.NULL;
+		else if (obj instanceof PHPObject)
+			return ((PHPObject) obj).getWrappedValue();
+		else if (obj instanceof Value)
+			return (Value) obj;
+		else if (obj instanceof String)
+			return env.createString((String) obj);
+		else if (obj instanceof Integer || obj instanceof Long || obj instanceof Short || obj instanceof Byte)
+			return LongValue.create(((Number) obj).longValue());
+		else if (obj instanceof Double || obj instanceof Float)
+			return DoubleValue.create(((Number) obj).doubleValue());
+		else if (obj instanceof Boolean)
+			return BooleanValue.create(((Boolean) obj).booleanValue());
+		else if (obj instanceof Character)
+			return env.createString(((Character) obj).charValue());
+		else if (obj instanceof Map)
+			return new JavaMapAdapter(env, (Map<?, ?>) obj);
+		else if (obj instanceof List)
+			return new JavaListAdapter(env, copyable((List<?>) obj));
+		else if (obj instanceof Collection)
+			return new JavaListAdapter(env, new ArrayList<Object>((Collection<?>) obj));
+		else if (obj instanceof Object[])
+			return new JavaListAdapter(env, new ArrayList<Object>(Arrays.asList((Object[]) obj)));
+		else if (obj instanceof int[])
+			return toArrayValue((int[]) obj);
+		else if (obj instanceof long[])
+			return toArrayValue((long[]) obj);
+		else if (obj instanceof double[])
+			return toArrayValue((double[]) obj);
+		else
+			return env.wrapJava(obj);
+	}
+
+	/**
+	 * Whether Quercus can copy a list of a given class, which it does whenever the list is passed by
+	 * value, through the public no-argument constructor of the class.
+	 */
+	private static final ClassValue<Boolean> COPYABLE = new ClassValue<Boolean>() {
+		protected Boolean computeValue(Class<?> type) {
+			try {
+				return Modifier.isPublic(type.getModifiers()) && type.getConstructor() != null;
+			} catch (NoSuchMethodException e) {
+				return false;
+			}
+		}
+	};
+
+	/**
+	 * @return <code>list</code>, or a copy of it that Quercus can copy in turn, e.g., when it comes 
+	 * from <code>Arrays.asList</code> or <code>Collections.unmodifiableList</code>.
+	 */
+	private static List<?> copyable(List<?> list) {
+		return COPYABLE.get(list.getClass()) ? list : new ArrayList<Object>(list);
+	}
+
+	private static ArrayValue toArrayValue(int[] array) {
+		ArrayValue value = new ArrayValueImpl(array.length);
+		for (int i=0; i<array.length; i++)
+			value.append(LongValue.create(array[i]));
+		return value;
+	}
+
+	private static ArrayValue toArrayValue(long[] array) {
+		ArrayValue value = new ArrayValueImpl(array.length);
+		for (int i=0; i<array.length; i++)
+			value.append(LongValue.create(array[i]));
+		return value;
+	}
+
+	private static ArrayValue toArrayValue(double[] array) {
+		ArrayValue value = new ArrayValueImpl(array.length);
+		for (int i=0; i<array.length; i++)
+			value.append(DoubleValue.create(array[i]));
+		return value;
+	}
+
+	/**
+	 * Convert a PHP scalar to its Java counterpart: <code>null</code>, <code>Boolean</code>,
+	 * <code>Long</code>, <code>Double</code> or <code>String</code>. Arrays and objects are
+	 * left wrapped in a <code>PHPObject</code>, to be converted if and when they are needed.
+	 */
+	static Object toJava(Env env, Value value) {
+		value = value.toValue();
+		if (value.isNull())
+			return null;
+		else if (value instanceof BooleanValue)
+			return Boolean.valueOf(value.toBoolean());
+		else if (value instanceof LongValue)
+			return Long.valueOf(value.toLong());
+		else if (value instanceof DoubleValue)
+			return Double.valueOf(value.toDouble());
+		else if (value instanceof StringValue)
+			return value.toJavaString();
+		else if (value instanceof JavaValue)
+			return value.toJavaObject();
+		else
+			return new PHPObject(env, value);
+	}
+
+	/**
+	 * Convert <code>value</code> to Java all the way down, so it no longer needs its environment: 
+	 * scalars as by {@link #toJava(Env, Value)}, and arrays and objects to a <code>LinkedHashMap</code>
+	 * of their entries or properties, converted the same way. A value met again further down, e.g., 
+	 * an object referring back to its parent, is converted to the same <code>Map</code>.
+	 */
+	static Object toDetachedJava(Env env, Value value) {
+		return toDetachedJava(env, value, new IdentityHashMap<Value, Map<Object, Object>>());
+	}
+
+	private static Object toDetachedJava(Env env, Value value, IdentityHashMap<Value, Map<Object, Object>> converted) {
+		value = value.toValue();
+		if (value instanceof JavaValue || !(value instanceof ArrayValue || value instanceof ObjectValue))
+			return toJava(env, value);
+
+		Map<Object, Object> map = converted.get(value);
+		if (map != null)
+			return map;
+		map = new LinkedHashMap<Object, Object>();
+		converted.put(value, map);
+
+		Value entries = value instanceof ArrayValue ? value : value.toArray();
+		if (entries instanceof ArrayValue) {
+			for (Map.Entry<Value, Value> entry : ((ArrayValue) entries).entrySet())
+				map.put(toJava(env, entry.getKey()), toDetachedJava(env, entry.getValue(), converted));
+		}
+		return map;
+	}
+
+}
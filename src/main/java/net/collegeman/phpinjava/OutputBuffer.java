@@ -0,0 +1,361 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+import com.caucho.vfs.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * <p>The stream output of a <code>PHP</code> instance is captured in for {@link PHP#toString()}.
+ * Output is kept as raw bytes, in a list of buffers that grow through a few size classes; buffers
+ * are recycled through a pool shared by all instances when the output is cleared, and the first
+ * one is kept by the instance for its next page. Views of the output fail once it's cleared, rather
+ * than read output captured in the same buffers since.</p>
+ * <p>Capture can be limited to a maximum number of bytes, past which output is either discarded
+ * or moved to a temporary file, as set by {@link PHP.Overflow}.</p>
+ */
+class OutputBuffer extends StreamImpl {
+
+	/**
+	 * The sizes of the buffers output is captured in. Each buffer is of the next size up from the
+	 * one before it, until the largest size is reached.
+	 */
+	static final int[] SIZE_CLASSES = { 4 * 1024, 16 * 1024, 64 * 1024 };
+
+	/**
+	 * The number of unused buffers of each size kept for reuse, across all instances.
+	 */
+	static final int MAX_RECYCLED = 64;
+
+	private static final List<BlockingQueue<byte[]>> recycled = new ArrayList<BlockingQueue<byte[]>>();
+
+	static {
+		for (int i = 0; i < SIZE_CLASSES.length; i++)
+			recycled.add(new ArrayBlockingQueue<byte[]>(MAX_RECYCLED));
+	}
+
+	private final List<byte[]> buffers = new ArrayList<byte[]>();
+
+	/**
+	 * The first buffer this instance was handed, kept across calls to {@link #clear()}.
+	 */
+	private byte[] first;
+
+	private int position;
+
+	private long size;
+
+	/**
+	 * Bumped each time the buffers are given up, so views of them can tell they're stale.
+	 */
+	private volatile int generation;
+
+	private long limit = Long.MAX_VALUE;
+
+	private PHP.Overflow overflow = PHP.Overflow.TRUNCATE;
+
+	private boolean truncated;
+
+	private File spill;
+
+	private OutputStream spillOutput;
+
+	private Charset charset = StandardCharsets.ISO_8859_1;
+
+	/**
+	 * Capture at most <code>limit</code> bytes, handling the rest as set by <code>overflow</code>.
+	 */
+	void setLimit(long limit, PHP.Overflow overflow) {
+		this.limit = limit;
+		this.overflow = overflow;
+	}
+
+	long getLimit() {
+		return limit;
+	}
+
+	PHP.Overflow getOverflow() {
+		return overflow;
+	}
+
+	/**
+	 * @return <code>true</code> when output was discarded because the limit was reached.
+	 */
+	boolean isTruncated() {
+		return truncated;
+	}
+
+	/**
+	 * @return The number of bytes captured.
+	 */
+	long size() {
+		return size;
+	}
+
+	public boolean canWrite() {
+		return true;
+	}
+
+	public void setWriteEncoding(String encoding) {
+		try {
+			charset = encoding == null ? StandardCharsets.ISO_8859_1 : Charset.forName(encoding);
+		} catch (IllegalArgumentException e) {
+			charset = StandardCharsets.ISO_8859_1;
+		}
+	}
+
+	public void write(byte[] bytes, int offset, int length, boolean isEnd) throws IOException {
+		if (spillOutput == null && size + length > limit) {
+			if (overflow == PHP.Overflow.SPILL_TO_DISK) {
+				spill();
+			}
+			else {
+				truncated = true;
+				length = (int) Math.max(0, limit - size);
+			}
+		}
+
+		if (spillOutput != null) {
+			spillOutput.write(bytes, offset, length);
+			size += length;
+			return;
+		}
+
+		while (length > 0) {
+			if (buffers.isEmpty() || position == buffers.get(buffers.size() - 1).length) {
+				buffers.add(allocate(buffers.size()));
+				position = 0;
+			}
+			byte[] buffer = buffers.get(buffers.size() - 1);
+			int count = Math.min(length, buffer.length - position);
+			System.arraycopy(bytes, offset, buffer, position, count);
+			position += count;
+			offset += count;
+			length -= count;
+			size += count;
+		}
+	}
+
+	/**
+	 * Move the output captured so far to a temporary file, and capture the rest there, too.
+	 */
+	private void spill() throws IOException {
+		spill = File.createTempFile("php-in-java-output", ".tmp");
+		spillOutput = new BufferedOutputStream(new FileOutputStream(spill), SIZE_CLASSES[SIZE_CLASSES.length - 1]);
+		writeBuffers(spillOutput);
+		recycle();
+	}
+
+	private byte[] allocate(int index) {
+		if (index == 0 && first != null)
+			return first;
+
+		int sizeClass = Math.min(index, SIZE_CLASSES.length - 1);
+		byte[] buffer = recycled.get(sizeClass).poll();
+		if (buffer == null)
+			buffer = new byte[SIZE_CLASSES[sizeClass]];
+		if (index == 0)
+			first = buffer;
+		return buffer;
+	}
+
+	private void recycle() {
+		generation++;
+		for (byte[] buffer : buffers) {
+			if (buffer != first)
+				recycled.get(sizeClassOf(buffer)).offer(buffer);
+		}
+		buffers.clear();
+		position = 0;
+	}
+
+	private static int sizeClassOf(byte[] buffer) {
+		for (int i = 0; i < SIZE_CLASSES.length - 1; i++) {
+			if (buffer.length == SIZE_CLASSES[i])
+				return i;
+		}
+		return SIZE_CLASSES.length - 1;
+	}
+
+	private void writeBuffers(OutputStream output) throws IOException {
+		for (int i = 0; i < buffers.size(); i++) {
+			byte[] buffer = buffers.get(i);
+			output.write(buffer, 0, i == buffers.size() - 1 ? position : buffer.length);
+		}
+	}
+
+	/**
+	 * Write the raw bytes captured to <code>output</code>, without decoding them.
+	 */
+	void writeTo(OutputStream output) throws IOException {
+		if (spillOutput != null) {
+			spillOutput.flush();
+			Files.copy(spill.toPath(), output);
+		}
+		else {
+			writeBuffers(output);
+		}
+	}
+
+	/**
+	 * @return The output captured, as characters. In the default encoding, ISO-8859-1, bytes map 
+	 * one to one to characters, so the buffers are read as they are; in any other encoding, or once 
+	 * output has been moved to disk, the output is decoded into a <code>String</code>.
+	 */
+	CharSequence asCharSequence() {
+		if (spillOutput != null || !StandardCharsets.ISO_8859_1.equals(charset))
+			return toString();
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalStateException("Output of ["+size+"] bytes is too large for a CharSequence");
+
+		byte[][] view = buffers.toArray(new byte[buffers.size()][]);
+		int[] starts = new int[view.length];
+		for (int i = 1; i < view.length; i++)
+			starts[i] = starts[i - 1] + view[i - 1].length;
+		return new Latin1Sequence(this, generation, view, starts, 0, (int) size);
+	}
+
+	public String toString() {
+		if (spillOutput != null) {
+			try {
+				spillOutput.flush();
+				return new String(Files.readAllBytes(spill.toPath()), charset);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		if (buffers.size() == 1)
+			return new String(buffers.get(0), 0, position, charset);
+
+		byte[] bytes = new byte[(int) size];
+		int offset = 0;
+		for (int i = 0; i < buffers.size(); i++) {
+			byte[] buffer = buffers.get(i);
+			int length = i == buffers.size() - 1 ? position : buffer.length;
+			System.arraycopy(buffer, 0, bytes, offset, length);
+			offset += length;
+		}
+		return new String(bytes, charset);
+	}
+
+	/**
+	 * Discard the output captured, returning its buffers for reuse and deleting its temporary file, if any.
+	 */
+	void clear() {
+		if (spillOutput != null) {
+			try {
+				spillOutput.close();
+			} catch (IOException e) {
+				// nothing left to lose
+			}
+			spill.delete();
+			spillOutput = null;
+			spill = null;
+		}
+		recycle();
+		size = 0;
+		truncated = false;
+	}
+
+	/**
+	 * A view of captured ISO-8859-1 output, read straight from the buffers it was captured in, for as 
+	 * long as they hold that output.
+	 */
+	private static class Latin1Sequence implements CharSequence {
+
+		private final OutputBuffer owner;
+
+		private final int generation;
+
+		private final byte[][] buffers;
+
+		private final int[] starts;
+
+		private final int offset;
+
+		private final int length;
+
+		private Latin1Sequence(OutputBuffer owner, int generation, byte[][] buffers, int[] starts, int offset, int length) {
+			this.owner = owner;
+			this.generation = generation;
+			this.buffers = buffers;
+			this.starts = starts;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		public int length() {
+			return length;
+		}
+
+		public char charAt(int index) {
+			if (index < 0 || index >= length)
+				throw new IndexOutOfBoundsException("Index ["+index+"] out of bounds for length ["+length+"]");
+			int at = offset + index;
+			int i = bufferAt(at);
+			char c = (char) (buffers[i][at - starts[i]] & 0xFF);
+			checkCurrent();
+			return c;
+		}
+
+		/**
+		 * Check the buffers weren't given up, after reading them, so a read that raced with 
+		 * {@link OutputBuffer#clear()} fails too.
+		 * @throws IllegalStateException When the output was cleared since this view was taken
+		 */
+		private void checkCurrent() {
+			if (owner.generation != generation)
+				throw new IllegalStateException("Output was cleared since this view of it was taken");
+		}
+
+		private int bufferAt(int at) {
+			int i = Arrays.binarySearch(starts, at);
+			return i < 0 ? -i - 2 : i;
+		}
+
+		public CharSequence subSequence(int start, int end) {
+			if (start < 0 || end > length || start > end)
+				throw new IndexOutOfBoundsException("Range ["+start+", "+end+") out of bounds for length ["+length+"]");
+			checkCurrent();
+			return new Latin1Sequence(owner, generation, buffers, starts, offset + start, end - start);
+		}
+
+		public String toString() {
+			byte[] bytes = new byte[length];
+			for (int copied = 0; copied < length; ) {
+				int at = offset + copied;
+				int i = bufferAt(at);
+				int count = Math.min(length - copied, buffers[i].length - (at - starts[i]));
+				System.arraycopy(buffers[i], at - starts[i], bytes, copied, count);
+				copied += count;
+			}
+			checkCurrent();
+			return new String(bytes, StandardCharsets.ISO_8859_1);
+		}
+
+	}
+
+}
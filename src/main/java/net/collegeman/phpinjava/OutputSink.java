@@ -0,0 +1,117 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+import com.caucho.vfs.*;
+
+import java.io.*;
+
+/**
+ * The stream underneath the <code>WriteStream</code> of a <code>PHP</code> instance. By default
+ * output is captured for {@link PHP#toString()}, but it can be pointed at a caller-supplied
+ * <code>OutputStream</code> or <code>Writer</code> instead, in which case output is handed
+ * over in chunks as it is written and never accumulates in memory.
+ */
+class OutputSink extends StreamImpl {
+
+	private final StreamImpl capture;
+
+	private StreamImpl target;
+
+	private String encoding;
+
+	private final Instrumentation instrumentation;
+
+	OutputSink(StreamImpl capture, Instrumentation instrumentation) {
+		this.capture = capture;
+		this.target = capture;
+		this.instrumentation = instrumentation;
+	}
+
+	/**
+	 * Direct all further output to <code>output</code>, <code>chunkSize</code> bytes at a time.
+	 * @return The stream output was directed to until now, for use with {@link #restore(StreamImpl)}.
+	 */
+	StreamImpl redirect(OutputStream output, int chunkSize) {
+		return restore(new VfsStream(null, new BufferedOutputStream(output, chunkSize)));
+	}
+
+	/**
+	 * Direct all further output to <code>output</code>, <code>chunkSize</code> characters at a time.
+	 * @return The stream output was directed to until now, for use with {@link #restore(StreamImpl)}.
+	 */
+	StreamImpl redirect(Writer output, int chunkSize) {
+		WriterStreamImpl writer = new FlushingWriterStreamImpl(new BufferedWriter(output, chunkSize));
+		if (encoding != null)
+			writer.setWriteEncoding(encoding);
+		return restore(writer);
+	}
+
+	/**
+	 * Direct all further output to <code>stream</code>, as returned by one of the <code>redirect</code> methods.
+	 * @return The stream output was directed to until now.
+	 */
+	StreamImpl restore(StreamImpl stream) {
+		StreamImpl previous = target;
+		target = stream;
+		return previous;
+	}
+
+	public boolean canWrite() {
+		return true;
+	}
+
+	public void setWriteEncoding(String encoding) {
+		this.encoding = encoding;
+		capture.setWriteEncoding(encoding);
+		if (target != capture)
+			target.setWriteEncoding(encoding);
+	}
+
+	public void write(byte[] buffer, int offset, int length, boolean isEnd) throws IOException {
+		target.write(buffer, offset, length, isEnd);
+		instrumentation.outputWritten(length);
+	}
+
+	public void flush() throws IOException {
+		target.flush();
+	}
+
+	/**
+	 * <code>WriterStreamImpl</code> doesn't flush the <code>Writer</code> it wraps, which leaves
+	 * the last chunk of output sitting in our buffer.
+	 */
+	private static class FlushingWriterStreamImpl extends WriterStreamImpl {
+
+		private final Writer writer;
+
+		private FlushingWriterStreamImpl(Writer writer) {
+			this.writer = writer;
+			setWriter(writer);
+		}
+
+		public void flush() throws IOException {
+			super.flush();
+			writer.flush();
+		}
+
+	}
+
+}
@@ -29,8 +29,11 @@ import java.util.logging.*;
 import java.net.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
 
-import org.springframework.mock.web.*;
+import javax.servlet.http.*;
 
 /**
  * <p>Instances of this class wrap one or more PHP scripts, making it possible for
@@ -58,21 +61,37 @@ import org.springframework.mock.web.*;
 public class PHP {
 
 	private static final Logger log = Logger.getLogger(PHP.class.getName());
-	private static Quercus quercus;
 	
-	private synchronized Quercus getQuercus() {
-		if (quercus == null) {
-			quercus = new Quercus();
-		}		
-		return quercus;
+	private final PHPEngine engine;
+	
+	private Quercus getQuercus() {
+		return engine.getQuercus();
+	}
+	
+	/**
+	 * Retrieves the cache of parsed PHP pages shared by all instances of <code>PHP</code> created 
+	 * with the default engine, e.g., to change its size or to read its hit and miss counts.
+	 * @see PHPEngine#getPageCache()
+	 */
+	public static PHPPageCache getPageCache() {
+		return PHPEngine.getDefault().getPageCache();
+	}
+	
+	/**
+	 * @return The engine this instance of <code>PHP</code> is bound to.
+	 */
+	public PHPEngine getEngine() {
+		return engine;
 	}
 	
 	/**
 	 * Initialize a <code>PHP</code> wrapper with either an intial PHP script or a local directory. 
 	 * <p><code>url</code> can take one of several forms:</p>
 	 * <ul>
-	 * <li>A <b>classpath</b> reference, taking the form <code>classpath:/path/to/file/or/directory</code></li>
-	 * <li>A <b>remote script</b> reference, taking the form <code>http://path/to/script</code></li>
+	 * <li>A <b>classpath</b> reference, taking the form <code>classpath:/path/to/file/or/directory</code>; scripts 
+	 * packed in a jar are parsed straight out of it, but directories must be on the file system</li>
+	 * <li>A <b>remote script</b> reference, taking the form <code>http://path/to/script</code>, mirrored 
+	 * locally by the {@link PHPScriptCache} of the engine</li>
      * <li>All other forms are assumed to be <b>file</b> references, referring to files available locally</li>
      * </ul>
      * @param url An initial PHP script to load or a local directory 
@@ -81,14 +100,61 @@ public class PHP {
 		this(url, PHP.class.getClassLoader());
 	}
 	
+	/**
+	 * Create a <code>PHP</code> wrapper that streams all of its output to <code>output</code>, 
+	 * rather than buffering it for {@link #toString()}. Refer to the doc for {@link #PHP(String)} 
+	 * for a description of the <code>url</code> parameter.
+	 */
+	public static PHP streaming(String url, OutputStream output) {
+		return streaming(url, PHP.class.getClassLoader(), output);
+	}
+	
+	/**
+	 * Create a <code>PHP</code> wrapper with a specific <code>ClassLoader</code> instance, streaming 
+	 * all of its output to <code>output</code>.
+	 */
+	public static PHP streaming(String url, ClassLoader classLoader, OutputStream output) {
+		if (output == null)
+			throw new IllegalArgumentException("[output] parameter must be defined");
+		return new PHP(PHPEngine.getDefault(), url, classLoader, output);
+	}
+	
+	/**
+	 * Create a <code>PHP</code> wrapper with a specific <code>File</code> loaded by the host,
+	 * streaming all of its output to <code>output</code>.
+	 */
+	public static PHP streaming(File file, OutputStream output) {
+		if (output == null)
+			throw new IllegalArgumentException("[output] parameter must be defined");
+		return new PHP(PHPEngine.getDefault(), file, output);
+	}
+	
 	private QuercusPage main;
 	
+	private File file;
+	
+	private String source;
+	
+	private String url;
+	
+	private ClassLoader classLoader;
+	
 	/** 
 	 * Create an empty instance of <code>PHP</code>. This instance can be used to execute arbitrary
 	 * snippets of PHP. But if you're looking to load a PHP library and execute snippets against that,
 	 * best to use one of the other constructors, {@link #PHP(String)} or {@link #PHP(String, ClassLoader)}
 	 */
-	public PHP() {}
+	public PHP() {
+		this(PHPEngine.getDefault());
+	}
+	
+	PHP(PHPEngine engine) {
+		this.engine = engine;
+		this.outputChunkSize = engine.getOutputChunkSize();
+		this.maxOutput = engine.getMaxOutput();
+		this.outputOverflow = engine.getOutputOverflow();
+		this.deadline.setTimeout(engine.getTimeout());
+	}
 	
 	
 	/**
@@ -96,27 +162,79 @@ public class PHP {
 	 * to the doc for {@link #PHP(String)} for a description of the <code>url</code> parameter.
 	 */
 	public PHP(String url, ClassLoader classLoader) {
+		this(PHPEngine.getDefault(), url, classLoader, null);
+	}
+	
+	/**
+	 * Initialize a <code>PHP</code> wrapper bound to a servlet <code>request</code>, streaming all of 
+	 * its output to <code>response</code>. Refer to the doc for {@link #PHP(String)} for a description 
+	 * of the <code>url</code> parameter.
+	 * <p>Instances created otherwise run in a minimal request of their own, with no headers, parameters 
+	 * or session; scripts that need any of these, <code>session_start()</code> included, need to be 
+	 * bound to a real request.</p>
+	 */
+	public PHP(String url, HttpServletRequest request, HttpServletResponse response) {
+		this(PHPEngine.getDefault(), url, request, response);
+	}
+	
+	PHP(PHPEngine engine, String url, HttpServletRequest request, HttpServletResponse response) {
+		this(engine, url, PHP.class.getClassLoader(), outputOf(request, response), request, response);
+	}
+	
+	private static OutputStream outputOf(HttpServletRequest request, HttpServletResponse response) {
+		if (request == null)
+			throw new IllegalArgumentException("[request] parameter must be defined");
+		
+		if (response == null)
+			throw new IllegalArgumentException("[response] parameter must be defined");
+		
+		try {
+			return response.getOutputStream();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	PHP(PHPEngine engine, String url, ClassLoader classLoader, OutputStream output) {
+		this(engine, url, classLoader, output, null, null);
+	}
+	
+	private PHP(PHPEngine engine, String url, ClassLoader classLoader, OutputStream output, HttpServletRequest request, HttpServletResponse response) {
+		this(engine);
+		this.initialOutput = output;
+		this.request = request;
+		this.response = response;
+		
 		if (url == null || url.length() < 1)
 			throw new IllegalArgumentException("[url] parameter must be defined");
 			
 		if (classLoader == null)
 			throw new IllegalArgumentException("[classLoader] parameter must be defined");
 		
+		this.url = url;
+		this.classLoader = classLoader;
+		
 		// classpath reference
 		if (url.indexOf("classpath:/") == 0) {
 			URL resource = classLoader.getResource(url.substring(11));
-			File ref = new File(resource.getPath());
-			initByFile(ref);
+			if (resource == null)
+				throw new RuntimeException(new FileNotFoundException("No PHP file or directory on the classpath at ["+url+"]"));
+			
+			if ("file".equals(resource.getProtocol())) {
+				try {
+					initByFile(new File(resource.toURI()));
+				} catch (URISyntaxException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			else {
+				initByResource(resource);
+			}
 		}
 		
 		// remote script
 		else if (url.indexOf("http://") == 0 || url.indexOf("https://") == 0) {
-			try {
-				URLConnection conn = new URL(url).openConnection();
-				initByInputStream(conn.getInputStream());
-			} catch (Exception e) {
-				throw new RuntimeException(e);
-			}
+			initByRemote(url);
 		}
 		
 		// file reference
@@ -124,6 +242,7 @@ public class PHP {
 			initByFile(new File(url));
 		}
 		
+		flush();
 	}
 	
 	/**
@@ -131,23 +250,50 @@ public class PHP {
 	 * @param file A file full of PHP script
 	 */
 	public PHP(File file) {
+		this(PHPEngine.getDefault(), file, null);
+	}
+	
+	PHP(PHPEngine engine, File file, OutputStream output) {
+		this(engine);
+		this.initialOutput = output;
+		this.url = file.getAbsolutePath();
+		this.classLoader = PHP.class.getClassLoader();
 		initByFile(file);
+		flush();
+	}
+	
+	private void initByRemote(String url) {
+		File mirror = engine.getScriptCache().fetch(url);
+		source = url;
+		try {
+			main = engine.getPageCache().getPage(getQuercus(), mirror);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		
+		initEnv(main);
+		executeMain();
 	}
 	
-	private void initByInputStream(InputStream stream) {
+	private void initByResource(URL resource) {
+		source = resource.toString();
 		try {
-			StringBuilder sourceCode = new StringBuilder(1024);
-			BufferedReader in = new BufferedReader(new InputStreamReader(stream));
-			char[] buffer = new char[1024];
-			int read = 0;
-			while ((read = in.read(buffer)) != -1)
-				sourceCode.append(buffer, 0, read);
-			in.close();
+			if (ClasspathPath.isDirectory(resource, resource.openConnection())) {
+				Path dir = new ClasspathPath(classLoader).lookup(url.substring(10));
+				if (dir.lookup(PHPPrecompiler.INDEX).canRead())
+					engine.preload(dir);
+				initEnv();
+				getEnv().setPwd(dir);
+				return;
+			}
 			
-			snippet(sourceCode.toString());
-		} catch (Exception e) {
+			main = engine.getPageCache().getResource(getQuercus(), resource);
+		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
+		
+		initEnv(main);
+		executeMain();
 	}
 	
 	private void initByFile(File ref) {
@@ -156,12 +302,16 @@ public class PHP {
 		}
 		
 		if (ref.isDirectory()) {
-			snippet("");
-			getEnv().setPwd(new FilePath(ref.getAbsolutePath()));
+			if (new File(ref, PHPPrecompiler.INDEX).isFile())
+				engine.preload(ref);
+			initEnv();
+			getEnv().setPwd(engine.getStatCache(ref).getRoot());
 		}
 		else {
+			file = ref;
+			source = ref.getPath();
 			try {
-				main = getQuercus().parse(new FilePath(ref.getAbsolutePath()));
+				main = engine.getPageCache().getPage(getQuercus(), ref);
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			}
@@ -172,37 +322,224 @@ public class PHP {
 			if (dir != null)
 				getEnv().setPwd(new FilePath(ref.getParentFile().getAbsolutePath()));
 			
-			main.executeTop(getEnv());
+			executeMain();
 		}
 	}
 	
+	/**
+	 * Execute the script this instance was loaded from for the first time, building its classes from 
+	 * the ones built by the first instance loaded from the same page, if any, or recording them for
+	 * the instances loaded after.
+	 */
+	private void executeMain() {
+		Env env = getEnv();
+		PHPDefinitions shared = engine.getDefinitions(main);
+		if (shared != null)
+			shared.share(env);
+		
+		executeTop(main, source, env);
+		
+		// the script may have included more classes to share
+		if (shared != null)
+			shared.share(env);
+		else
+			engine.putDefinitions(main, env);
+	}
+	
 	private Env env;
-	private MockHttpServletRequest request;
-	private MockHttpServletResponse response;
-	private StreamImpl out;
+	private HttpServletRequest request;
+	private HttpServletResponse response;
+	private OutputSink out;
+	private OutputBuffer capture;
 	private WriteStream ws;
+	private OutputStream initialOutput;
+	private int outputChunkSize;
+	private long maxOutput;
+	private Overflow outputOverflow;
+	private final Deadline deadline = new Deadline();
+	
+	/**
+	 * The number of bytes of output handed to a streaming output sink at a time, by default.
+	 */
+	public static final int DEFAULT_OUTPUT_CHUNK_SIZE = 8192;
 	
 	private void initEnv(QuercusPage page) {
 		if (env == null) {
-			request = new MockHttpServletRequest();
-			response = new MockHttpServletResponse();
+			capture = new OutputBuffer();
+			capture.setLimit(maxOutput, outputOverflow);
 			
-			WriterStreamImpl writer = new WriterStreamImpl();
-			try {
-				writer.setWriter(response.getWriter());
-			} catch (UnsupportedEncodingException e) {
-				throw new RuntimeException(e);
-			}
+			out = new OutputSink(capture, engine.getInstrumentation());
+			if (initialOutput != null)
+				out.redirect(initialOutput, outputChunkSize);
 			
-			out = writer;
 			ws = new WriteStream(out);
 			ws.setNewlineString("\n");
 			
+			if (request == null)
+				request = new EmbeddedRequest();
+			if (response == null)
+				response = new EmbeddedResponse(ws);
+			
 			env = getQuercus().createEnv(page, ws, request, response);
+			engine.getInstrumentation().attach(env);
 			
 			env.setPwd(new FilePath(System.getProperty("user.dir")));
 			
 			env.start();
+			deadline.attach(env);
+		}
+	}
+	
+	/**
+	 * Make sure the execution environment exists, without parsing or executing anything
+	 * when it already does.
+	 */
+	Env initEnv() {
+		if (env == null) {
+			try {
+				initEnv(engine.getPageCache().getSnippet(getQuercus(), ""));
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return getEnv();
+	}
+	
+	/**
+	 * The reloaded script waiting to be swapped in, when in watch mode.
+	 */
+	private volatile AtomicReference<PHP> reloaded;
+	
+	/**
+	 * Reload the PHP script this instance was initialized with whenever it, or any other file in
+	 * its directory, changes. The script is parsed and executed again in the background, in a
+	 * fresh environment, and swapped in the next time this instance is used from outside of PHP, 
+	 * never in the middle of a call; calls are never held up by a reload. If the script fails to 
+	 * load, the previous version stays in service.
+	 * <p>The whole script runs again, rather than just its changed functions and classes being swapped
+	 * in, so that its top-level code, the includes and constants it sets up, runs against the new version
+	 * too.</p>
+	 * <p>When the new version is swapped in, it keeps the global variables of the previous one, 
+	 * except for those the script itself sets, and any output not yet retrieved, and the environment 
+	 * of the previous version is closed. Resources held by the global variables kept, such as open
+	 * files, stay open, unless held by an object. Handles obtained before the swap, <code>PHPFunction</code>,
+	 * <code>PHPMethod</code> and the methods of <code>PHPObject</code>, throw 
+	 * <code>IllegalStateException</code> when called; obtain them again.</p>
+	 * @return This instance of <code>PHP</code>, to support method chaining.
+	 * @throws IllegalStateException When this instance wasn't initialized with a PHP script file
+	 */
+	public PHP watch() {
+		if (file == null)
+			throw new IllegalStateException("No PHP script file was loaded");
+		
+		if (reloaded == null) {
+			reloaded = new AtomicReference<PHP>();
+			ScriptWatcher.getInstance().watch(file.getAbsoluteFile().getParentFile(), this);
+		}
+		return this;
+	}
+	
+	/**
+	 * Stop reloading the PHP script this instance was initialized with. A reload already waiting
+	 * is still swapped in.
+	 * @return This instance of <code>PHP</code>, to support method chaining.
+	 */
+	public PHP unwatch() {
+		if (reloaded != null)
+			ScriptWatcher.getInstance().unwatch(this);
+		return this;
+	}
+	
+	/**
+	 * Load the PHP script of this instance once more, in a fresh instance, leaving it for
+	 * {@link #swapReloaded()}. Runs on the thread of the <code>ScriptWatcher</code>.
+	 */
+	void reload() {
+		PHP fresh;
+		try {
+			fresh = new PHP(engine, file, null);
+			
+			// the output of loading the script was already produced when this instance was loaded
+			fresh.clear();
+		} catch (RuntimeException e) {
+			log.log(Level.WARNING, "Unable to reload ["+file.getAbsolutePath()+"]; keeping the previous version", e);
+			return;
+		}
+		
+		// a reload not yet swapped in, because this instance was busy, is superseded
+		PHP superseded = reloaded.getAndSet(fresh);
+		if (superseded != null)
+			superseded.close();
+	}
+	
+	/**
+	 * Take over the environment of the most recently reloaded instance, if there is one, and close 
+	 * the one it replaces. Only ever called between calls into the environment.
+	 */
+	private void swapReloaded() {
+		PHP fresh = reloaded.getAndSet(null);
+		if (fresh == null)
+			return;
+		
+		Env stale = env;
+		OutputBuffer staleCapture = capture;
+		
+		HashMap<String, Var> globals = fresh.env.getGlobalEnv();
+		IdentityHashMap<Value, Value> handedOver = new IdentityHashMap<Value, Value>();
+		for (Map.Entry<String, Var> global : env.getGlobalEnv().entrySet()) {
+			if (!globals.containsKey(global.getKey())) {
+				Value value = global.getValue().toValue();
+				handOver(value, stale, fresh.env, handedOver);
+				fresh.env.setGlobalValue(global.getKey(), value);
+			}
+		}
+		
+		try {
+			ws.flush();
+			fresh.capture.setLimit(maxOutput, outputOverflow);
+			if (initialOutput != null)
+				fresh.out.redirect(initialOutput, outputChunkSize);
+			else
+				capture.writeTo(fresh.ws);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		
+		deadline.attach(fresh.env);
+		env = fresh.env;
+		request = fresh.request;
+		response = fresh.response;
+		out = fresh.out;
+		capture = fresh.capture;
+		ws = fresh.ws;
+		main = fresh.main;
+		
+		try {
+			stale.close();
+		} catch (RuntimeException e) {
+			log.log(Level.WARNING, "Unable to close the environment replaced by a reload of ["+file.getAbsolutePath()+"]", e);
+		}
+		staleCapture.clear();
+	}
+	
+	/**
+	 * Move the resources <code>value</code> holds, such as open files, from the cleanup list of 
+	 * <code>from</code> to that of <code>to</code>, so closing <code>from</code> doesn't close them.
+	 * Resources held directly by a global variable or inside an array are moved; those held by the 
+	 * properties of an object are not.
+	 */
+	private static void handOver(Value value, Env from, Env to, IdentityHashMap<Value, Value> seen) {
+		if (seen.put(value, value) != null)
+			return;
+		
+		Object resource = value instanceof JavaValue ? value.toJavaObject() : value;
+		if (resource instanceof EnvCleanup) {
+			from.removeCleanup((EnvCleanup) resource);
+			to.addCleanup((EnvCleanup) resource);
+		}
+		else if (value instanceof ArrayValue) {
+			for (Value element : ((ArrayValue) value).values())
+				handOver(element.toValue(), from, to, seen);
 		}
 	}
 	
@@ -215,6 +552,9 @@ public class PHP {
 	public final Env getEnv() {
 		if (env == null)
 			throw new IllegalStateException("Environment not yet initialized");	
+		// a call into PHP, or Java code PHP called back into, keeps the environment it started with
+		if (reloaded != null && !deadline.isActive())
+			swapReloaded();
 		return env;
 	}
 	
@@ -224,8 +564,19 @@ public class PHP {
 	 * @param obj The value to store there
 	 */
 	public PHP set(String name, Object obj) {
-		snippet("");
-		getEnv().setGlobalValue(name, toValue(getEnv(), obj));
+		Env env = initEnv();
+		env.setGlobalValue(name, toValue(env, obj));
+		return this;
+	}
+	
+	/**
+	 * Set the values of several global variables in the PHP execution environment at once.
+	 * @param globals The values to store, keyed by the names of the global parameters to create/update
+	 */
+	public PHP setAll(Map<String, ?> globals) {
+		Env env = initEnv();
+		for (Map.Entry<String, ?> global : globals.entrySet())
+			env.setGlobalValue(global.getKey(), toValue(env, global.getValue()));
 		return this;
 	}
 	
@@ -234,25 +585,107 @@ public class PHP {
 	 * @param name The name of the global parameter tto read
 	 */
 	public PHPObject get(String name) {
-		snippet("");
-		return new PHPObject(getEnv(), getEnv().getGlobalValue(name));
+		Env env = initEnv();
+		return new PHPObject(env, env.getGlobalValue(name));
+	}
+	
+	/**
+	 * Retrieve the values of several global variables in the PHP execution environment at once.
+	 * @param names The names of the global parameters to read
+	 * @return The values read, keyed by name, in the order the names were given
+	 */
+	public Map<String, PHPObject> getAll(String ... names) {
+		Env env = initEnv();
+		Map<String, PHPObject> globals = new LinkedHashMap<String, PHPObject>();
+		for (String name : names)
+			globals.put(name, new PHPObject(env, env.getGlobalValue(name)));
+		return globals;
+	}
+	
+	/**
+	 * Record the global variables, functions and classes of the PHP execution environment, typically
+	 * right after a script has been loaded, so that they can be put back later with {@link #restore(PHPSnapshot)}.
+	 * @return A snapshot that can only be restored into this instance.
+	 */
+	public PHPSnapshot snapshot() {
+		return new PHPSnapshot(initEnv());
+	}
+	
+	/**
+	 * Roll the PHP execution environment back to the state recorded by <code>snapshot</code>: global 
+	 * variables set since are unset, and those changed get their recorded values back; functions and 
+	 * classes defined since are forgotten. Buffered output is left alone; see {@link #clear()}.
+	 * @return This instance of <code>PHP</code>, to support method chaining.
+	 * @throws IllegalArgumentException When <code>snapshot</code> was taken from another instance
+	 */
+	public PHP restore(PHPSnapshot snapshot) {
+		if (snapshot == null)
+			throw new IllegalArgumentException("[snapshot] parameter must be defined");
+		snapshot.restore(initEnv());
+		deadline.cure();
+		return this;
+	}
+	
+	/**
+	 * Stop any call into PHP made through this instance, or through the <code>PHPObject</code>s, 
+	 * <code>PHPFunction</code>s and <code>PHPMethod</code>s obtained from it, that runs for longer than 
+	 * <code>timeout</code>, with a {@link PHPTimeoutException}. Scripts are stopped at their next loop 
+	 * iteration or function call. Zero, the default, leaves calls to <code>max_execution_time</code> only.
+	 * @return This instance of <code>PHP</code>, to support method chaining.
+	 */
+	public PHP setTimeout(long timeout, TimeUnit unit) {
+		if (timeout < 0)
+			throw new IllegalArgumentException("[timeout] parameter must not be negative");
+		deadline.setTimeout(unit.toMillis(timeout));
+		return this;
+	}
+	
+	/**
+	 * Run <code>work</code> with this instance, stopping every call into PHP it makes that is still
+	 * running <code>timeout</code> from now with a {@link PHPTimeoutException}. Any shorter deadline
+	 * already in effect, set by an enclosing call or by {@link #setTimeout(long, TimeUnit)}, still holds.
+	 * <pre>
+	 * String html = php.withTimeout(50, TimeUnit.MILLISECONDS, p -&gt; p.fx("render", model).toString());
+	 * </pre>
+	 * @return The result of <code>work</code>.
+	 */
+	public <T> T withTimeout(long timeout, TimeUnit unit, Function<PHP, T> work) {
+		if (timeout < 1)
+			throw new IllegalArgumentException("[timeout] parameter must be greater than zero");
+		if (work == null)
+			throw new IllegalArgumentException("[work] parameter must be defined");
+		
+		long[] previous = deadline.scope(unit.toMillis(timeout));
+		try {
+			return work.apply(this);
+		} finally {
+			deadline.unscope(previous);
+		}
+	}
+	
+	/**
+	 * @return <code>true</code> when a call into PHP was stopped part way through by its deadline, 
+	 * which may have left global variables and objects half updated. A poisoned instance still 
+	 * works, and is cured by {@link #restore(PHPSnapshot)}; a {@link PHPPool} discards it instead
+	 * of lending it out again.
+	 */
+	public boolean isPoisoned() {
+		return deadline.isPoisoned();
 	}
 	
 	/**
 	 * Ensures that <code>obj</code> is of type or wrapped in an instance
 	 * of Quercus' <code>Value</code>, with respect to the given execution
 	 * environment <code>env</code>.
+	 * <p>Strings, numbers, booleans and characters become native PHP scalars. Maps, lists, 
+	 * other collections and arrays of objects become PHP arrays backed by the Java object itself, 
+	 * their elements converted only as PHP reads them. Arrays of <code>int</code>, <code>long</code>
+	 * and <code>double</code> are copied into native PHP arrays. Anything else is wrapped as a 
+	 * Java object.</p>
 	 * @return <code>obj</code> or <code>obj</code> wrapped in a <code>Value</code> instance.
 	 */
 	public static Value toValue(Env env, Object obj) {
-		if (obj == null)
-			return env.wrapJava(obj);
-		else if (obj instanceof PHPObject)
-			return ((PHPObject) obj).getWrappedValue();
-		else if (obj instanceof Value)
-			return (Value) obj;
-		else 
-			return env.wrapJava(obj);
+		return Marshal.toValue(env, obj);
 	}
 	
 	/** 
@@ -261,9 +694,10 @@ public class PHP {
 	 */
 	public PHP snippet(String snippet) {
 		try {
-			QuercusPage page = getQuercus().parse(StringStream.open(snippet));
+			QuercusPage page = engine.getPageCache().getSnippet(getQuercus(), snippet);
 			initEnv(page);
-			page.executeTop(getEnv());
+			Env env = getEnv();
+			executeTop(page, PHPPageCache.SNIPPET, env);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -272,71 +706,353 @@ public class PHP {
 	}
 	
 	/**
-	 * Retrieve the output generated by all PHP scripts executed in this context.
+	 * Execute the PHP script this instance was initialized with once more, streaming its output 
+	 * to <code>output</code> as it is generated rather than buffering it for {@link #toString()}.
+	 * @return This instance of <code>PHP</code>, to support method chaining.
+	 * @throws IllegalStateException When this instance wasn't initialized with a PHP script file
 	 */
-	public String toString() {
+	public PHP execute(OutputStream output) {
+		Env env = getMainEnv();
+		flush();
+		executeRedirected(main, source, env, out.redirect(output, outputChunkSize));
+		return this;
+	}
+	
+	/**
+	 * Execute the PHP script this instance was initialized with once more, streaming its output 
+	 * to <code>output</code> as it is generated rather than buffering it for {@link #toString()}.
+	 * @return This instance of <code>PHP</code>, to support method chaining.
+	 * @throws IllegalStateException When this instance wasn't initialized with a PHP script file
+	 */
+	public PHP execute(Writer output) {
+		Env env = getMainEnv();
+		flush();
+		executeRedirected(main, source, env, out.redirect(output, outputChunkSize));
+		return this;
+	}
+	
+	/**
+	 * Execute the top level of <code>page</code> with its output redirected, then flush it and direct 
+	 * output back to <code>previous</code>, the stream it went to before.
+	 */
+	private Value executeRedirected(QuercusPage page, String source, Env env, StreamImpl previous) {
+		try {
+			Value result = executeTop(page, source, env);
+			flush();
+			return result;
+		} finally {
+			out.restore(previous);
+		}
+	}
+	
+	/**
+	 * Execute the top level of <code>page</code>, reporting it to the listeners of the engine.
+	 */
+	private Value executeTop(QuercusPage page, String source, Env env) {
+		Instrumentation instrumentation = engine.getInstrumentation();
+		long start = instrumentation.start();
+		Value result;
+		deadline.enter();
+		try {
+			result = page.executeTop(env);
+		} catch (RuntimeException e) {
+			throw deadline.failed(e);
+		} finally {
+			deadline.exit();
+		}
+		instrumentation.pageExecuted(source, env, start);
+		return result;
+	}
+	
+	/**
+	 * Execute the top level of the parsed snippet <code>page</code>, streaming its output to <code>output</code>,
+	 * or capturing it for {@link #toString()} when <code>output</code> is <code>null</code>.
+	 * @return The value the page returned.
+	 */
+	Value eval(QuercusPage page, Writer output) {
+		boolean started = env != null;
+		initEnv(page);
+		Env env = getEnv();
+		if (started) {
+			// an environment only picks up the functions and classes of the page it starts from by itself
+			page.init(env);
+			page.importDefinitions(env);
+		}
+		if (output == null)
+			return executeTop(page, PHPPageCache.SNIPPET, env);
+		
+		flush();
+		return executeRedirected(page, PHPPageCache.SNIPPET, env, out.redirect(output, outputChunkSize));
+	}
+	
+	private Env getMainEnv() {
+		if (main == null)
+			throw new IllegalStateException("No PHP script file was loaded");
+		return getEnv();
+	}
+	
+	/**
+	 * Set the number of bytes of output handed to a streaming output sink at a time. Takes 
+	 * effect the next time output is directed to a sink.
+	 * @return This instance of <code>PHP</code>, to support method chaining.
+	 */
+	public PHP setOutputChunkSize(int outputChunkSize) {
+		if (outputChunkSize < 1)
+			throw new IllegalArgumentException("[outputChunkSize] parameter must be greater than zero");
+		this.outputChunkSize = outputChunkSize;
+		return this;
+	}
+	
+	/**
+	 * Push any output still buffered by script execution out to its destination.
+	 * @return This instance of <code>PHP</code>, to support method chaining.
+	 */
+	public PHP flush() {
 		if (env != null) {
 			try {
 				ws.flush();
-				return response.getContentAsString();
-			} catch (UnsupportedEncodingException e) {
-				throw new RuntimeException(e);
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			}
 		}
+		return this;
+	}
+	
+	/**
+	 * Retrieve the output generated by all PHP scripts executed in this context. Output streamed
+	 * to an output sink is not included.
+	 */
+	public String toString() {
+		if (env != null) {
+			flush();
+			return capture.toString();
+		}
 		else {
 			return null;
 		}
 	}
 	
+	/**
+	 * Retrieve the output generated by all PHP scripts executed in this context, without copying it.
+	 * The sequence returned reads the buffers output was captured in, so it is only valid until 
+	 * the next call to {@link #clear()}, after which those buffers are reused: from then on, reading 
+	 * it throws <code>IllegalStateException</code>. Copy it with <code>toString()</code> to keep it.
+	 */
+	public CharSequence asCharSequence() {
+		if (env != null) {
+			flush();
+			return capture.asCharSequence();
+		}
+		else {
+			return null;
+		}
+	}
+	
+	/**
+	 * Write the output generated by all PHP scripts executed in this context to <code>output</code>, 
+	 * as the raw bytes it was captured as, without decoding it.
+	 * @return This instance of <code>PHP</code>, to support method chaining.
+	 */
+	public PHP writeTo(OutputStream output) {
+		if (env != null) {
+			flush();
+			try {
+				capture.writeTo(output);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return this;
+	}
+	
+	/**
+	 * Capture at most <code>maxOutput</code> bytes of output for {@link #toString()}, handling 
+	 * the rest as set by <code>overflow</code>. Output is not limited by default.
+	 * @return This instance of <code>PHP</code>, to support method chaining.
+	 */
+	public PHP setMaxOutput(long maxOutput, Overflow overflow) {
+		if (maxOutput < 0)
+			throw new IllegalArgumentException("[maxOutput] parameter must not be negative");
+		if (overflow == null)
+			throw new IllegalArgumentException("[overflow] parameter must be defined");
+		this.maxOutput = maxOutput;
+		this.outputOverflow = overflow;
+		if (capture != null)
+			capture.setLimit(maxOutput, overflow);
+		return this;
+	}
+	
+	/**
+	 * @return <code>true</code> when output was discarded since the last call to {@link #clear()}, 
+	 * because it didn't fit the limit set with {@link #setMaxOutput(long, Overflow)}.
+	 */
+	public boolean isOutputTruncated() {
+		flush();
+		return capture != null && capture.isTruncated();
+	}
+	
+	/**
+	 * What becomes of output past the limit set with {@link PHP#setMaxOutput(long, Overflow)}.
+	 */
+	public enum Overflow {
+		
+		/**
+		 * Discard it.
+		 */
+		TRUNCATE,
+		
+		/**
+		 * Move all of the output to a temporary file, deleted when the output is cleared.
+		 */
+		SPILL_TO_DISK
+		
+	}
+	
 	/**
 	 * Clear any text buffered by script execution, presumably in preparation for
 	 * executing another PHP snippet.
 	 * @return This instance of <code>PHP</code>, to support method chaining.
 	 */
 	public PHP clear() {
-		response.setCommitted(false);
-		response.reset();
+		if (env == null)
+			return this;
+
+		// push out whatever is still sitting in the write buffers, so that it gets cleared, too
+		try {
+			ws.flush();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		
+		if (response instanceof EmbeddedResponse)
+			response.reset();
+		capture.clear();
 		return this;
 	}
 	
+	/**
+	 * Release what this instance holds: stop watching its script, stop the threads of 
+	 * {@link #fxBatch(String, List, int)}, close the PHP execution environment, which runs any 
+	 * shutdown functions, and discard the output buffered, deleting the temporary file it was 
+	 * moved to, if any. The instance can't be used after.
+	 */
+	public void close() {
+		if (reloaded != null) {
+			unwatch();
+			PHP fresh = reloaded.getAndSet(null);
+			if (fresh != null)
+				fresh.close();
+		}
+		if (batch != null) {
+			batch.shutdown();
+			batch = null;
+		}
+		if (env != null) {
+			try {
+				env.close();
+			} finally {
+				capture.clear();
+				env = null;
+			}
+		}
+	}
+	
 	/**
 	 * Call the PHP function named <code>fxName</code> with arguments <code>args</code>
 	 * @return An instance of PHPObject, wrapped around the return value of the function.
 	 */
 	public PHPObject fx(String fxName, Object ... args) {
+		Env env = getEnv();
 		if (args != null && args.length > 0) {
 			Value[] values = new Value[args.length];
 			for (int i=0; i<args.length; i++)
-				values[i] = toValue(getEnv(), args[i]);
+				values[i] = toValue(env, args[i]);
 				
-			return new PHPObject(getEnv(), getEnv().call(fxName, values));
+			return call(env, fxName, values);
 		}
 		else {
-			return new PHPObject(getEnv(), getEnv().call(fxName));
+			return call(env, fxName, null);
+		}
+	}
+	
+	private PHPObject call(Env env, String fxName, Value[] values) {
+		Instrumentation instrumentation = engine.getInstrumentation();
+		long start = instrumentation.start();
+		boolean failed = true;
+		deadline.enter();
+		try {
+			PHPObject result = new PHPObject(env, values != null ? env.call(fxName, values) : env.call(fxName));
+			failed = false;
+			return result;
+		} catch (RuntimeException e) {
+			throw deadline.failed(e);
+		} finally {
+			deadline.exit();
+			instrumentation.functionCalled(fxName, start, failed);
 		}
 	}
 	
+	/**
+	 * Look up the PHP function named <code>fxName</code> once, for calling it many times
+	 * with as little overhead as possible.
+	 * @return A reusable handle on the function.
+	 * @throws RuntimeException Wrapping a <code>NoSuchMethodException</code> when no such function is defined
+	 */
+	public PHPFunction function(String fxName) {
+		return new PHPFunction(getEnv(), fxName);
+	}
+	
+	/**
+	 * Call the PHP function named <code>fxName</code> once for each element of <code>argsList</code>,
+	 * running up to <code>parallelism</code> calls at once. The calls don't run in this instance, whose
+	 * environment can only be used by one thread at a time, but in fresh instances loaded from the
+	 * same script; so any state built up in this instance since it was loaded is not visible to them.
+	 * Those instances, and the threads the calls run on, are kept for the next batch of the same
+	 * parallelism.
+	 * @return One result for each element of <code>argsList</code>, in the same order.
+	 * @see PHPBatchExecutor
+	 */
+	public List<PHPBatchExecutor.Result> fxBatch(String fxName, List<Object[]> argsList, int parallelism) {
+		if (url == null)
+			throw new IllegalStateException("No PHP script file was loaded");
+		
+		if (batch == null || batch.getParallelism() != parallelism) {
+			if (parallelism < 1)
+				throw new IllegalArgumentException("[parallelism] parameter must be greater than zero");
+			if (batch != null)
+				batch.shutdown();
+			batch = new PHPBatchExecutor(engine, url, classLoader, parallelism);
+		}
+		return batch.fx(fxName, argsList);
+	}
+	
+	/**
+	 * The executor of {@link #fxBatch(String, List, int)}, kept from one batch to the next.
+	 */
+	private PHPBatchExecutor batch;
+	
 	/**
 	 * Create a new instance of the PHP class <code>className</code>, initialized with
 	 * arguments <code>args</code>.
 	 * @return An instance of PHPObject, wrapping the new instance of <code>className</code>.
 	 */
 	public PHPObject newInstance(String className, Object ... args) {
-		QuercusClass clazz = getEnv().findClass(className);
+		Env env = getEnv();
+		QuercusClass clazz = env.findClass(className);
 		if (clazz == null)
 			throw new RuntimeException(new ClassNotFoundException("PHP:"+className));
 		
-		if (args != null && args.length > 0) {
-			Value[] values = new Value[args.length];
-			for (int i=0; i<args.length; i++)
-				values[i] = toValue(getEnv(), args[i]);
-				
-			return new PHPObject(getEnv(), clazz.callNew(getEnv(), values));
-		}
-		else {
-			return new PHPObject(getEnv(), clazz.callNew(getEnv(), new Value[]{}));
+		Value[] values = new Value[args != null ? args.length : 0];
+		for (int i=0; i<values.length; i++)
+			values[i] = toValue(env, args[i]);
+		
+		deadline.enter();
+		try {
+			return new PHPObject(env, clazz.callNew(env, values));
+		} catch (RuntimeException e) {
+			throw deadline.failed(e);
+		} finally {
+			deadline.exit();
 		}
 	}
 	
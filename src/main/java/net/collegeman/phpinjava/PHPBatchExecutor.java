@@ -0,0 +1,214 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+import com.caucho.quercus.env.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * <p>Calls the same PHP function for many sets of arguments, in parallel. Each worker thread
+ * borrows its own instance of <code>PHP</code> from a {@link PHPPool}, all of them loaded from
+ * the same script, and keeps it for the length of the batch.</p>
+ * <pre>
+ * PHPBatchExecutor batch = new PHPBatchExecutor("classpath:/path/to/script.php", 8);
+ * try {
+ *   for (PHPBatchExecutor.Result result : batch.fx("render", argsList)) {
+ *     if (result.isFailed())
+ *       log(result.getException());
+ *     else
+ *       send((String) result.getValue());
+ *   }
+ * } finally {
+ *   batch.shutdown();
+ * }
+ * </pre>
+ * <p>Results are returned in the order of their arguments, and a failure is recorded for the
+ * arguments that caused it without stopping the rest of the batch. Worker threads stop after
+ * {@link #KEEP_ALIVE_SECONDS} seconds without work, and are started again by the next batch.</p>
+ * @author Aaron Collegeman aaron@collegeman.net
+ */
+public class PHPBatchExecutor {
+
+	/**
+	 * How long a worker thread waits for the next batch before it stops.
+	 */
+	public static final long KEEP_ALIVE_SECONDS = 60;
+
+	private final PHPPool pool;
+
+	private final ExecutorService executor;
+
+	private final int parallelism;
+
+	/**
+	 * Create an executor running at most <code>parallelism</code> calls at once, each of them on
+	 * an instance of <code>PHP</code> loaded from <code>url</code>. Refer to the doc for
+	 * {@link PHP#PHP(String)} for a description of the <code>url</code> parameter.
+	 */
+	public PHPBatchExecutor(String url, int parallelism) {
+		this(PHPEngine.getDefault(), url, PHP.class.getClassLoader(), parallelism);
+	}
+
+	/**
+	 * Create an executor running at most <code>parallelism</code> calls at once, each of them on
+	 * an instance of <code>PHP</code> created by <code>engine</code> and loaded from <code>url</code>
+	 * with the given <code>ClassLoader</code>.
+	 */
+	public PHPBatchExecutor(PHPEngine engine, String url, ClassLoader classLoader, int parallelism) {
+		if (parallelism < 1)
+			throw new IllegalArgumentException("[parallelism] parameter must be greater than zero");
+
+		this.pool = new PHPPool(engine, url, classLoader, parallelism);
+		this.parallelism = parallelism;
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(parallelism, parallelism, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "php-batch-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.allowCoreThreadTimeOut(true);
+		this.executor = executor;
+	}
+
+	/**
+	 * Call the PHP function named <code>fxName</code> once for each element of <code>argsList</code>,
+	 * and wait for all of the calls to complete.
+	 * @return One <code>Result</code> for each element of <code>argsList</code>, in the same order.
+	 */
+	public List<Result> fx(final String fxName, final List<Object[]> argsList) {
+		if (fxName == null || fxName.length() < 1)
+			throw new IllegalArgumentException("[fxName] parameter must be defined");
+
+		if (argsList == null)
+			throw new IllegalArgumentException("[argsList] parameter must be defined");
+
+		final Result[] results = new Result[argsList.size()];
+		final AtomicInteger next = new AtomicInteger();
+
+		List<Future<?>> workers = new ArrayList<Future<?>>();
+		for (int i=0; i<Math.min(parallelism, results.length); i++) {
+			workers.add(executor.submit(new Runnable() {
+				public void run() {
+					PHP php = pool.borrow();
+					try {
+						Env env = php.getEnv();
+						PHPFunction function = null;
+						RuntimeException missing = null;
+						try {
+							function = php.function(fxName);
+						} catch (RuntimeException e) {
+							missing = e;
+						}
+
+						int index;
+						while ((index = next.getAndIncrement()) < results.length) {
+							if (function == null) {
+								results[index] = new Result(null, missing);
+								continue;
+							}
+							try {
+								// converted while the instance is still ours, before it goes back to the pool
+								results[index] = new Result(Marshal.toDetachedJava(env, function.call(argsList.get(index)).getWrappedValue()), null);
+							} catch (RuntimeException e) {
+								results[index] = new Result(null, e);
+							}
+						}
+					} finally {
+						pool.release(php);
+					}
+				}
+			}));
+		}
+
+		try {
+			for (Future<?> worker : workers)
+				worker.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+
+		return Collections.unmodifiableList(Arrays.asList(results));
+	}
+
+	/**
+	 * Stop the worker threads and discard the instances of <code>PHP</code> they were using.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+		pool.close();
+	}
+
+	/**
+	 * @return The maximum number of calls this executor runs at once.
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * The outcome of one call in a batch: either the value returned by the PHP function, or the
+	 * exception it failed with. The environment the call ran in is handed on to other callers once
+	 * the batch completes, so the value is converted to Java before then: <code>null</code>, 
+	 * <code>Boolean</code>, <code>Long</code>, <code>Double</code> or <code>String</code> for scalars,
+	 * and a <code>Map</code> of the converted entries or properties of arrays and objects.
+	 */
+	public static class Result {
+
+		private final Object value;
+
+		private final RuntimeException exception;
+
+		private Result(Object value, RuntimeException exception) {
+			this.value = value;
+			this.exception = exception;
+		}
+
+		/**
+		 * @return The value returned by the PHP function, converted to Java.
+		 * @throws RuntimeException The exception the call failed with, if it failed
+		 */
+		public Object getValue() {
+			if (exception != null)
+				throw exception;
+			return value;
+		}
+
+		/**
+		 * @return The exception the call failed with, or <code>null</code> when it succeeded.
+		 */
+		public RuntimeException getException() {
+			return exception;
+		}
+
+		public boolean isFailed() {
+			return exception != null;
+		}
+
+	}
+
+}
@@ -0,0 +1,97 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+import com.caucho.quercus.env.*;
+
+import java.util.*;
+
+import javax.script.*;
+
+/**
+ * The global variables of a <code>PHP</code> instance, as the engine scope of a {@link PHPScriptEngine}.
+ * Values are converted as they are read and written, never copied in bulk.
+ */
+final class PHPBindings extends AbstractMap<String, Object> implements Bindings {
+
+	private final PHP php;
+
+	PHPBindings(PHP php) {
+		this.php = php;
+	}
+
+	private Env env() {
+		return php.initEnv();
+	}
+
+	public Object put(String name, Object value) {
+		if (name == null || name.length() < 1)
+			throw new IllegalArgumentException("[name] parameter must be defined");
+		Object previous = get(name);
+		php.set(name, value);
+		return previous;
+	}
+
+	public boolean containsKey(Object name) {
+		return env().getGlobalEnv().containsKey(name);
+	}
+
+	public Object get(Object name) {
+		Env env = env();
+		Var var = env.getGlobalEnv().get(name);
+		return var != null ? Marshal.toJava(env, var) : null;
+	}
+
+	public Object remove(Object name) {
+		Object previous = get(name);
+		if (name instanceof String)
+			env().unsetGlobalVar((String) name);
+		return previous;
+	}
+
+	public Set<Map.Entry<String, Object>> entrySet() {
+		final Env env = env();
+		final Set<Map.Entry<String, Var>> globals = env.getGlobalEnv().entrySet();
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				final Iterator<Map.Entry<String, Var>> entries = globals.iterator();
+				return new Iterator<Map.Entry<String, Object>>() {
+					public boolean hasNext() {
+						return entries.hasNext();
+					}
+
+					public Map.Entry<String, Object> next() {
+						Map.Entry<String, Var> entry = entries.next();
+						return new SimpleImmutableEntry<String, Object>(entry.getKey(), Marshal.toJava(env, entry.getValue()));
+					}
+
+					public void remove() {
+						entries.remove();
+					}
+				};
+			}
+
+			public int size() {
+				return globals.size();
+			}
+		};
+	}
+
+}
@@ -0,0 +1,48 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+import com.caucho.quercus.page.*;
+
+import javax.script.*;
+
+/**
+ * A script parsed once by a {@link PHPScriptEngine}, for executing as often as needed.
+ */
+final class PHPCompiledScript extends CompiledScript {
+
+	private final PHPScriptEngine engine;
+
+	private final QuercusPage page;
+
+	PHPCompiledScript(PHPScriptEngine engine, QuercusPage page) {
+		this.engine = engine;
+		this.page = page;
+	}
+
+	public Object eval(ScriptContext context) throws ScriptException {
+		return engine.eval(page, context);
+	}
+
+	public ScriptEngine getEngine() {
+		return engine;
+	}
+
+}
@@ -0,0 +1,164 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+import com.caucho.quercus.env.*;
+import com.caucho.quercus.expr.*;
+import com.caucho.quercus.program.*;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * <p>The PHP classes built by the first environment started from a page, for every other environment
+ * started from the same page to share. Quercus shares the parsed definitions of functions and classes 
+ * between environments already, through the page, but builds the runtime form of each class, with its 
+ * method and field tables, in every environment that uses it; for a pool of instances loaded from a 
+ * framework, those tables make up much of the heap of each instance.</p>
+ * <p>A class is only shared when nothing in it belongs to one environment: it must be declared from
+ * PHP source, along with every class and interface it extends or implements, and its static properties 
+ * must be initialized with literal scalars, which Quercus hands out to every environment as they are.
+ * The values of static properties are kept by each environment, as always. A shared class is only 
+ * handed to an environment that declares it, and everything it extends, from the very same definitions.</p>
+ */
+final class PHPDefinitions {
+
+	private static final Logger log = Logger.getLogger(PHPDefinitions.class.getName());
+
+	private final List<QuercusClass> classes = new ArrayList<QuercusClass>();
+
+	private PHPDefinitions() {
+	}
+
+	/**
+	 * Build every shareable class declared in <code>env</code>, and record them.
+	 */
+	static PHPDefinitions record(Env env) {
+		PHPDefinitions definitions = new PHPDefinitions();
+		if (STATIC_FIELDS == null)
+			return definitions;
+
+		for (ClassDef def : env._classDef.clone()) {
+			if (def != null && isShareable(env, def, 0)) {
+				QuercusClass clazz = env.findClass(def.getName());
+				if (clazz != null && clazz.getClassDef() == def)
+					definitions.classes.add(clazz);
+			}
+		}
+		return definitions;
+	}
+
+	/**
+	 * Hand the recorded classes to <code>env</code>, except for those it has built already, or declares differently.
+	 */
+	void share(Env env) {
+		if (classes.isEmpty())
+			return;
+
+		Map<String, QuercusClass> classMap = classMap(env, CLASS_MAP);
+		Map<String, QuercusClass> lowerClassMap = classMap(env, LOWER_CLASS_MAP);
+		for (QuercusClass clazz : classes) {
+			String name = clazz.getName();
+			if (!classMap.containsKey(name) && isDeclared(env, clazz)) {
+				classMap.put(name, clazz);
+				lowerClassMap.put(name.toLowerCase(), clazz);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of classes recorded.
+	 */
+	int size() {
+		return classes.size();
+	}
+
+	private static boolean isDeclared(Env env, QuercusClass clazz) {
+		for (ClassDef def : clazz.getClassDefList()) {
+			if (env.findClassDef(def.getName()) != def)
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isShareable(Env env, ClassDef def, int depth) {
+		// guard against inheritance cycles, which Quercus reports when the class is built
+		if (!(def instanceof InterpretedClassDef) || depth > 64)
+			return false;
+
+		try {
+			@SuppressWarnings("unchecked")
+			Map<String, Expr> fields = (Map<String, Expr>) STATIC_FIELDS.get(def);
+			for (Expr expr : fields.values()) {
+				if (!expr.isLiteral())
+					return false;
+				Value value = expr.eval(env);
+				if (value.isArray() || value.isObject())
+					return false;
+			}
+		} catch (IllegalAccessException e) {
+			return false;
+		}
+
+		// whatever the class extends must be declared, or building it would autoload
+		List<String> supers = new ArrayList<String>(Arrays.asList(def.getInterfaces()));
+		if (def.getParentName() != null)
+			supers.add(def.getParentName());
+		for (String name : supers) {
+			ClassDef parent = env.findClassDef(name);
+			if (parent == null || !isShareable(env, parent, depth + 1))
+				return false;
+		}
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, QuercusClass> classMap(Env env, Field field) {
+		try {
+			return (Map<String, QuercusClass>) field.get(env);
+		} catch (IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static final Field CLASS_MAP = field(Env.class, "_classMap");
+
+	private static final Field LOWER_CLASS_MAP = field(Env.class, "_lowerClassMap");
+
+	/**
+	 * Left <code>null</code> when any of the fields can't be reached, which turns sharing off.
+	 */
+	private static final Field STATIC_FIELDS = CLASS_MAP != null && LOWER_CLASS_MAP != null 
+		? field(InterpretedClassDef.class, "_staticFieldMap") : null;
+
+	private static Field field(Class<?> type, String name) {
+		try {
+			Field field = type.getDeclaredField(name);
+			field.setAccessible(true);
+			return field;
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Unable to access "+type.getSimpleName()+"."+name+"; classes won't be shared between PHP instances", e);
+			return null;
+		}
+	}
+
+}
@@ -0,0 +1,537 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+import com.caucho.quercus.*;
+import com.caucho.quercus.env.*;
+import com.caucho.quercus.page.*;
+import com.caucho.vfs.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+import javax.servlet.http.*;
+
+/**
+ * <p>A configured Quercus interpreter, along with its own cache of parsed pages, from which
+ * any number of <code>PHP</code> instances can be created. Each engine is configured once,
+ * when it is built, so several engines with different settings can live side by side in the
+ * same JVM.</p>
+ * <pre>
+ * PHPEngine engine = new PHPEngine.Builder()
+ *   .setIni("memory_limit", "64M")
+ *   .setIncludePath("/path/to/php/lib")
+ *   .setPageCacheSize(1024)
+ *   .build();
+ *
+ * PHP php = engine.create("classpath:/path/to/script.php");
+ * </pre>
+ * <p>The constructors of <code>PHP</code> all use the default engine, {@link #getDefault()}.</p>
+ * @author Aaron Collegeman aaron@collegeman.net
+ */
+public class PHPEngine {
+
+	private static final Logger log = Logger.getLogger(PHPEngine.class.getName());
+
+	/**
+	 * The Quercus implementation able to compile PHP pages to Java bytecode, found in Resin Professional.
+	 */
+	static final String COMPILING_QUERCUS = "com.caucho.quercus.ProQuercus";
+
+	private final Quercus quercus;
+
+	private final PHPPageCache pageCache;
+
+	private final PHPScriptCache scriptCache;
+
+	private final int outputChunkSize;
+
+	private final long maxOutput;
+
+	private final PHP.Overflow outputOverflow;
+
+	private final long timeout;
+
+	private final Instrumentation instrumentation = new Instrumentation();
+
+	private final Set<com.caucho.vfs.Path> preloaded = new HashSet<com.caucho.vfs.Path>();
+
+	private final long statRevalidateAfter;
+
+	private final ConcurrentMap<File, PHPStatCache> statCaches = new ConcurrentHashMap<File, PHPStatCache>();
+
+	/**
+	 * The classes shared by the instances of <code>PHP</code> loaded from each page, for as long as the page is in use.
+	 */
+	private final Map<QuercusPage, PHPDefinitions> definitions = new WeakHashMap<QuercusPage, PHPDefinitions>();
+
+	private PHPEngine(Builder builder) {
+		quercus = builder.compile ? createCompilingQuercus() : new Quercus();
+		quercus.setCompile(builder.compile && quercus.isPro());
+		quercus.setLazyCompile(builder.compile && builder.lazyCompile);
+		if (builder.workDir != null) {
+			if (!builder.workDir.isDirectory() && !builder.workDir.mkdirs())
+				throw new RuntimeException(new IOException("Unable to create work directory ["+builder.workDir.getAbsolutePath()+"]"));
+			quercus.setWorkDir(new FilePath(builder.workDir.getAbsolutePath()));
+		}
+		for (Map.Entry<String, String> ini : builder.ini.entrySet())
+			quercus.setIni(ini.getKey(), ini.getValue());
+
+		pageCache = new PHPPageCache(builder.pageCacheSize, instrumentation);
+		scriptCache = new PHPScriptCache(builder.scriptCacheDir);
+		outputChunkSize = builder.outputChunkSize;
+		maxOutput = builder.maxOutput;
+		outputOverflow = builder.outputOverflow;
+		timeout = builder.timeout;
+		statRevalidateAfter = builder.statRevalidateAfter;
+		for (PHPListener listener : builder.listeners)
+			instrumentation.add(listener);
+	}
+
+	/**
+	 * The open source Quercus can only interpret PHP, so look for the one that can compile it.
+	 */
+	private static Quercus createCompilingQuercus() {
+		try {
+			return (Quercus) Class.forName(COMPILING_QUERCUS, true, PHPEngine.class.getClassLoader()).newInstance();
+		} catch (ClassNotFoundException e) {
+			log.warning("Compiled mode requires ["+COMPILING_QUERCUS+"] on the classpath; PHP will be interpreted");
+		} catch (Exception e) {
+			log.log(Level.WARNING, "Unable to create ["+COMPILING_QUERCUS+"]; PHP will be interpreted", e);
+		}
+		return new Quercus();
+	}
+
+	private static class DefaultHolder {
+		private static final PHPEngine engine = new Builder().build();
+	}
+
+	/**
+	 * @return The engine used by all of the constructors of <code>PHP</code>, configured with default settings.
+	 */
+	public static PHPEngine getDefault() {
+		return DefaultHolder.engine;
+	}
+
+	/**
+	 * Create an empty instance of <code>PHP</code>, bound to this engine.
+	 * @see PHP#PHP()
+	 */
+	public PHP create() {
+		return new PHP(this);
+	}
+
+	/**
+	 * Create an instance of <code>PHP</code> bound to this engine, initialized with an initial PHP
+	 * script or a local directory.
+	 * @see PHP#PHP(String)
+	 */
+	public PHP create(String url) {
+		return new PHP(this, url, PHP.class.getClassLoader(), null);
+	}
+
+	/**
+	 * Create an instance of <code>PHP</code> bound to this engine, initialized with an initial PHP
+	 * script or a local directory and a specific <code>ClassLoader</code>.
+	 * @see PHP#PHP(String, ClassLoader)
+	 */
+	public PHP create(String url, ClassLoader classLoader) {
+		return new PHP(this, url, classLoader, null);
+	}
+
+	/**
+	 * Create an instance of <code>PHP</code> bound to this engine, streaming all of its output to <code>output</code>.
+	 * @see PHP#streaming(String, OutputStream)
+	 */
+	public PHP createStreaming(String url, OutputStream output) {
+		if (output == null)
+			throw new IllegalArgumentException("[output] parameter must be defined");
+		return new PHP(this, url, PHP.class.getClassLoader(), output);
+	}
+
+	/**
+	 * Create an instance of <code>PHP</code> bound to this engine and to a servlet request, streaming all of its output to <code>response</code>.
+	 * @see PHP#PHP(String, HttpServletRequest, HttpServletResponse)
+	 */
+	public PHP create(String url, HttpServletRequest request, HttpServletResponse response) {
+		return new PHP(this, url, request, response);
+	}
+
+	/**
+	 * Create an instance of <code>PHP</code> bound to this engine, initialized with a specific <code>File</code>.
+	 * @see PHP#PHP(File)
+	 */
+	public PHP create(File file) {
+		return new PHP(this, file, null);
+	}
+
+	/**
+	 * @return The Quercus interpreter configured for this engine.
+	 */
+	public Quercus getQuercus() {
+		return quercus;
+	}
+
+	/**
+	 * @return <code>true</code> when this engine compiles PHP pages to Java bytecode, rather than interpreting them.
+	 */
+	public boolean isCompiled() {
+		return quercus.isCompile();
+	}
+
+	/**
+	 * @return The cache of pages parsed by this engine.
+	 */
+	public PHPPageCache getPageCache() {
+		return pageCache;
+	}
+
+	/**
+	 * @return The local mirror of the scripts this engine loads over HTTP.
+	 */
+	public PHPScriptCache getScriptCache() {
+		return scriptCache;
+	}
+
+	/**
+	 * @return The cache of file metadata shared by the instances of <code>PHP</code> created by this engine
+	 * from the directory <code>dir</code>, created on first use.
+	 */
+	public PHPStatCache getStatCache(File dir) {
+		if (dir == null)
+			throw new IllegalArgumentException("[dir] parameter must be defined");
+
+		File canonical;
+		try {
+			canonical = dir.getCanonicalFile();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		PHPStatCache cache = statCaches.get(canonical);
+		if (cache == null) {
+			PHPStatCache created = new PHPStatCache(canonical, statRevalidateAfter);
+			cache = statCaches.putIfAbsent(canonical, created);
+			if (cache == null)
+				cache = created;
+		}
+		return cache;
+	}
+
+	/**
+	 * @return The number of bytes of output handed to a streaming output sink at a time, by instances of <code>PHP</code> created by this engine.
+	 */
+	public int getOutputChunkSize() {
+		return outputChunkSize;
+	}
+
+	/**
+	 * @return The number of bytes of output captured by instances of <code>PHP</code> created by this engine, by default.
+	 * @see PHP#setMaxOutput(long, PHP.Overflow)
+	 */
+	public long getMaxOutput() {
+		return maxOutput;
+	}
+
+	/**
+	 * @return What becomes of output past {@link #getMaxOutput()}, by default.
+	 */
+	public PHP.Overflow getOutputOverflow() {
+		return outputOverflow;
+	}
+
+	/**
+	 * @return The number of milliseconds each call into PHP made by instances of <code>PHP</code> created 
+	 * by this engine is given by default, or zero when calls are only limited by <code>max_execution_time</code>.
+	 * @see PHP#setTimeout(long, TimeUnit)
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Start reporting the work done by the instances of <code>PHP</code> created by this engine to <code>listener</code>.
+	 * While an engine has no listeners, it measures nothing.
+	 * @return This instance of <code>PHPEngine</code>, to support method chaining.
+	 */
+	public PHPEngine addListener(PHPListener listener) {
+		if (listener == null)
+			throw new IllegalArgumentException("[listener] parameter must be defined");
+		instrumentation.add(listener);
+		return this;
+	}
+
+	/**
+	 * Stop reporting to <code>listener</code>.
+	 * @return This instance of <code>PHPEngine</code>, to support method chaining.
+	 */
+	public PHPEngine removeListener(PHPListener listener) {
+		instrumentation.remove(listener);
+		return this;
+	}
+
+	/**
+	 * Parse the pages of a directory precompiled with {@link PHPPrecompiler} into the page cache of 
+	 * this engine, and pin them there, unless that was done already. Instances of <code>PHP</code> 
+	 * initialized with a precompiled directory do this on their own. Pinned pages don't count toward 
+	 * the size of the page cache.
+	 * @return The number of pages parsed.
+	 */
+	public int preload(File dir) {
+		return preload(getStatCache(dir).getRoot());
+	}
+
+	/**
+	 * Parse the pages of the precompiled directory at <code>dir</code>, on disk or on the classpath,
+	 * unless that was done already.
+	 * @return The number of pages parsed.
+	 */
+	int preload(com.caucho.vfs.Path dir) {
+		synchronized (preloaded) {
+			if (!preloaded.add(dir))
+				return 0;
+		}
+		return new PHPPrecompiler(this).preload(dir);
+	}
+
+	/**
+	 * @return The classes shared by the instances of <code>PHP</code> loaded from <code>page</code>, 
+	 * or <code>null</code> when none was loaded yet.
+	 */
+	PHPDefinitions getDefinitions(QuercusPage page) {
+		synchronized (definitions) {
+			return definitions.get(page);
+		}
+	}
+
+	/**
+	 * Record the classes built by <code>env</code>, just loaded from <code>page</code>, for the instances 
+	 * of <code>PHP</code> loaded from it after, unless another instance beat it to it.
+	 */
+	void putDefinitions(QuercusPage page, Env env) {
+		if (getDefinitions(page) != null)
+			return;
+		PHPDefinitions recorded = PHPDefinitions.record(env);
+		synchronized (definitions) {
+			if (!definitions.containsKey(page))
+				definitions.put(page, recorded);
+		}
+	}
+
+	Instrumentation getInstrumentation() {
+		return instrumentation;
+	}
+
+	/**
+	 * Release what this engine holds: its parsed pages, its cached file metadata and classes, and the 
+	 * Quercus runtime behind it. Close the instances of <code>PHP</code> it created first; neither they 
+	 * nor the engine can be used after. Mirrored scripts and the work directory are left on disk.
+	 * @throws IllegalStateException When called on the default engine, which the whole JVM shares
+	 */
+	public void close() {
+		if (this == getDefault())
+			throw new IllegalStateException("The default engine can't be closed");
+		
+		pageCache.clear();
+		statCaches.clear();
+		synchronized (preloaded) {
+			preloaded.clear();
+		}
+		synchronized (definitions) {
+			definitions.clear();
+		}
+		quercus.close();
+	}
+
+	/**
+	 * Collects the settings for a new {@link PHPEngine}.
+	 */
+	public static class Builder {
+
+		private final Map<String, String> ini = new LinkedHashMap<String, String>();
+
+		private boolean compile = false;
+
+		private boolean lazyCompile = true;
+
+		private File workDir;
+
+		private int pageCacheSize = PHPPageCache.DEFAULT_MAX_SIZE;
+
+		private int outputChunkSize = PHP.DEFAULT_OUTPUT_CHUNK_SIZE;
+
+		private long maxOutput = Long.MAX_VALUE;
+
+		private PHP.Overflow outputOverflow = PHP.Overflow.TRUNCATE;
+
+		private long timeout = 0;
+
+		private long statRevalidateAfter = PHPStatCache.DEFAULT_REVALIDATE_AFTER;
+
+		private final List<PHPListener> listeners = new ArrayList<PHPListener>();
+
+		private File scriptCacheDir = PHPScriptCache.DEFAULT_DIRECTORY;
+
+		/**
+		 * Set the PHP ini setting <code>name</code> to <code>value</code>.
+		 * @return This instance of <code>Builder</code>, to support method chaining.
+		 */
+		public Builder setIni(String name, String value) {
+			if (name == null || name.length() < 1)
+				throw new IllegalArgumentException("[name] parameter must be defined");
+			ini.put(name, value);
+			return this;
+		}
+
+		/**
+		 * Set the PHP include path, i.e., the ini setting <code>include_path</code>.
+		 * @return This instance of <code>Builder</code>, to support method chaining.
+		 */
+		public Builder setIncludePath(String includePath) {
+			return setIni("include_path", includePath);
+		}
+
+		/**
+		 * Enable or disable compilation of PHP pages to Java bytecode. Compiling requires the
+		 * Quercus implementation of Resin Professional on the classpath; without it, pages are
+		 * interpreted just the same. Compiled pages are recompiled when their source file changes.
+		 * @return This instance of <code>Builder</code>, to support method chaining.
+		 */
+		public Builder setCompile(boolean compile) {
+			this.compile = compile;
+			return this;
+		}
+
+		/**
+		 * When compiling, interpret each page until its compilation completes in the background,
+		 * rather than waiting for it. Enabled by default.
+		 * @return This instance of <code>Builder</code>, to support method chaining.
+		 */
+		public Builder setLazyCompile(boolean lazyCompile) {
+			this.lazyCompile = lazyCompile;
+			return this;
+		}
+
+		/**
+		 * Set the directory in which compiled pages are kept, so that they survive a restart of the JVM.
+		 * The directory is created if it doesn't exist yet.
+		 * @return This instance of <code>Builder</code>, to support method chaining.
+		 */
+		public Builder setWorkDir(File workDir) {
+			this.workDir = workDir;
+			return this;
+		}
+
+		/**
+		 * Set the maximum number of parsed pages the engine keeps in its cache.
+		 * @return This instance of <code>Builder</code>, to support method chaining.
+		 */
+		public Builder setPageCacheSize(int pageCacheSize) {
+			if (pageCacheSize < 1)
+				throw new IllegalArgumentException("[pageCacheSize] parameter must be greater than zero");
+			this.pageCacheSize = pageCacheSize;
+			return this;
+		}
+
+		/**
+		 * Set the number of bytes of output handed to a streaming output sink at a time.
+		 * @return This instance of <code>Builder</code>, to support method chaining.
+		 */
+		public Builder setOutputChunkSize(int outputChunkSize) {
+			if (outputChunkSize < 1)
+				throw new IllegalArgumentException("[outputChunkSize] parameter must be greater than zero");
+			this.outputChunkSize = outputChunkSize;
+			return this;
+		}
+
+		/**
+		 * Set the number of bytes of output captured by instances of <code>PHP</code> created by the
+		 * engine, and what becomes of the rest. Output is not limited by default.
+		 * @return This instance of <code>Builder</code>, to support method chaining.
+		 * @see PHP#setMaxOutput(long, PHP.Overflow)
+		 */
+		public Builder setMaxOutput(long maxOutput, PHP.Overflow overflow) {
+			if (maxOutput < 0)
+				throw new IllegalArgumentException("[maxOutput] parameter must not be negative");
+			if (overflow == null)
+				throw new IllegalArgumentException("[overflow] parameter must be defined");
+			this.maxOutput = maxOutput;
+			this.outputOverflow = overflow;
+			return this;
+		}
+
+		/**
+		 * Stop any call into PHP made by instances of <code>PHP</code> created by the engine that runs 
+		 * for longer than <code>timeout</code>. Calls are only limited by <code>max_execution_time</code> by default.
+		 * @return This instance of <code>Builder</code>, to support method chaining.
+		 * @see PHP#setTimeout(long, TimeUnit)
+		 */
+		public Builder setTimeout(long timeout, TimeUnit unit) {
+			if (timeout < 0)
+				throw new IllegalArgumentException("[timeout] parameter must not be negative");
+			this.timeout = unit.toMillis(timeout);
+			return this;
+		}
+
+		/**
+		 * Set how long the {@link PHPStatCache}s of the engine trust what they know about a file before 
+		 * checking with the file system again, two seconds by default. Zero means never checking again, 
+		 * for deployments whose files don't change.
+		 * @return This instance of <code>Builder</code>, to support method chaining.
+		 */
+		public Builder setStatRevalidateAfter(long statRevalidateAfter, TimeUnit unit) {
+			if (statRevalidateAfter < 0)
+				throw new IllegalArgumentException("[statRevalidateAfter] parameter must not be negative");
+			this.statRevalidateAfter = unit.toMillis(statRevalidateAfter);
+			return this;
+		}
+
+		/**
+		 * Set the directory in which scripts loaded over HTTP are mirrored. The directory is created on first use,
+		 * accessible to its owner only, and a mirrored script is executed only while no one else can write to it.
+		 * @return This instance of <code>Builder</code>, to support method chaining.
+		 */
+		public Builder setScriptCacheDir(File scriptCacheDir) {
+			if (scriptCacheDir == null)
+				throw new IllegalArgumentException("[scriptCacheDir] parameter must be defined");
+			this.scriptCacheDir = scriptCacheDir;
+			return this;
+		}
+
+		/**
+		 * Report the work done by the instances of <code>PHP</code> created by the engine to <code>listener</code>.
+		 * @return This instance of <code>Builder</code>, to support method chaining.
+		 */
+		public Builder addListener(PHPListener listener) {
+			if (listener == null)
+				throw new IllegalArgumentException("[listener] parameter must be defined");
+			listeners.add(listener);
+			return this;
+		}
+
+		public PHPEngine build() {
+			return new PHPEngine(this);
+		}
+
+	}
+
+}
@@ -0,0 +1,141 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+import com.caucho.quercus.env.*;
+import com.caucho.quercus.program.*;
+
+/**
+ * <p>A reusable handle on a global PHP function, as returned by {@link PHP#function(String)}.
+ * The function is looked up once, when the handle is created, so calling it through the handle
+ * costs no lookup by name.</p>
+ * <pre>
+ * PHPFunction repeat = php.function("repeat");
+ * for (String message : messages)
+ *   results.add(repeat.call(message).toString());
+ * </pre>
+ * <p>Like the <code>PHP</code> instance it came from, a handle must not be used by more than one
+ * thread at a time. Once a watched instance swaps in a reload of its script, handles obtained 
+ * before are stale, and calling them throws <code>IllegalStateException</code>.</p>
+ * @author Aaron Collegeman aaron@collegeman.net
+ */
+public class PHPFunction {
+
+	private final Env env;
+
+	private final AbstractFunction function;
+
+	private final Arguments arguments = new Arguments();
+
+	private final Instrumentation instrumentation;
+
+	private final Deadline deadline;
+
+	PHPFunction(Env env, String name) {
+		this.env = env;
+		this.instrumentation = Instrumentation.of(env);
+		this.deadline = Deadline.of(env);
+		this.function = env.findFunction(name);
+		if (function == null)
+			throw new RuntimeException(new NoSuchMethodException("PHP:"+name));
+	}
+
+	/**
+	 * Call the function with arguments <code>args</code>.
+	 * @return An instance of PHPObject, wrapped around the return value of the function.
+	 */
+	public PHPObject call(Object ... args) {
+		deadline.check(env);
+		Value[] values = arguments.acquire(env, args);
+		long start = instrumentation.start();
+		boolean failed = true;
+		deadline.enter();
+		try {
+			PHPObject result = new PHPObject(env, function.call(env, values));
+			failed = false;
+			return result;
+		} catch (RuntimeException e) {
+			throw deadline.failed(e);
+		} finally {
+			deadline.exit();
+			arguments.release(values);
+			instrumentation.functionCalled(function.getName(), start, failed);
+		}
+	}
+
+	/**
+	 * @return The name of the function, as it was declared.
+	 */
+	public String getName() {
+		return function.getName();
+	}
+
+	/**
+	 * @return The Quercus definition of the function.
+	 */
+	public AbstractFunction getWrappedFunction() {
+		return function;
+	}
+
+	/**
+	 * Argument arrays, kept for reuse from one call to the next. A call made while another is
+	 * still running, e.g., from PHP code calling back into Java, gets an array of its own.
+	 */
+	static class Arguments {
+
+		private static final Value[] NONE = new Value[0];
+
+		private Value[] values = NONE;
+
+		private boolean inUse = false;
+
+		Value[] acquire(Env env, Object[] args) {
+			if (args == null || args.length == 0)
+				return NONE;
+
+			Value[] acquired;
+			if (!inUse && values.length == args.length) {
+				acquired = values;
+				inUse = true;
+			}
+			else if (!inUse) {
+				acquired = values = new Value[args.length];
+				inUse = true;
+			}
+			else {
+				acquired = new Value[args.length];
+			}
+
+			for (int i=0; i<args.length; i++)
+				acquired[i] = PHP.toValue(env, args[i]);
+			return acquired;
+		}
+
+		void release(Value[] acquired) {
+			if (acquired == values && acquired != NONE) {
+				for (int i=0; i<acquired.length; i++)
+					acquired[i] = null;
+				inUse = false;
+			}
+		}
+
+	}
+
+}
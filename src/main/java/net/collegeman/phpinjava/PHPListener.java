@@ -0,0 +1,62 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+/**
+ * <p>Receives timings and other measurements of the work done by the instances of <code>PHP</code>
+ * of a {@link PHPEngine}, once registered with {@link PHPEngine#addListener(PHPListener)}. See
+ * {@link PHPMetrics} for a listener that aggregates them and publishes them over JMX.</p>
+ * <p>Listeners are called synchronously, on the thread doing the work, so they must be quick and
+ * thread-safe. Exceptions thrown by a listener are logged and otherwise ignored.</p>
+ * @author Aaron Collegeman aaron@collegeman.net
+ */
+public interface PHPListener {
+
+	/**
+	 * A page was parsed, rather than found in the page cache.
+	 * @param page The path of the file parsed, or <code>snippet</code>
+	 */
+	void pageParsed(String page, long nanos);
+
+	/**
+	 * The top level of a page was executed.
+	 * @param page The path of the file executed, or <code>snippet</code>
+	 * @param memoryEstimate A rough estimate of the memory held by the global variables of the
+	 * execution environment, once the page was executed, in bytes
+	 */
+	void pageExecuted(String page, long nanos, long memoryEstimate);
+
+	/**
+	 * A global PHP function was called from Java.
+	 * @param failed <code>true</code> when the call threw an exception
+	 */
+	void functionCalled(String name, long nanos, boolean failed);
+
+	/**
+	 * A method of a PHP object was called from Java.
+	 * @param failed <code>true</code> when the call threw an exception
+	 */
+	void methodCalled(String className, String name, long nanos, boolean failed);
+
+	/**
+	 * PHP wrote <code>bytes</code> bytes of output.
+	 */
+	void outputWritten(int bytes);
+
+}
@@ -0,0 +1,105 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+import com.caucho.quercus.env.*;
+import com.caucho.quercus.program.*;
+
+/**
+ * <p>A reusable handle on a method of a PHP object, as returned by {@link PHPObject#method(String)}.
+ * The method is looked up once, when the handle is created, so calling it through the handle
+ * costs no lookup by name.</p>
+ * <p>Like the <code>PHP</code> instance it came from, a handle must not be used by more than one
+ * thread at a time. Like a {@link PHPFunction}, it goes stale when the instance swaps in a reload
+ * of its script.</p>
+ * @author Aaron Collegeman aaron@collegeman.net
+ */
+public class PHPMethod {
+
+	private final Env env;
+
+	private final Value object;
+
+	private final StringValue name;
+
+	private final AbstractFunction method;
+
+	private final PHPFunction.Arguments arguments = new PHPFunction.Arguments();
+
+	private final Instrumentation instrumentation;
+
+	private final Deadline deadline;
+
+	PHPMethod(Env env, Value object, String name) {
+		this.env = env;
+		this.instrumentation = Instrumentation.of(env);
+		this.deadline = Deadline.of(env);
+		this.object = object;
+		this.name = env.createString(name);
+
+		// methods of PHP classes can be resolved up front; anything else, e.g., wrapped Java
+		// objects or classes relying on __call, is dispatched by name on every call
+		AbstractFunction method = null;
+		if (object instanceof ObjectValue) {
+			QuercusClass clazz = ((ObjectValue) object).getQuercusClass();
+			if (clazz != null && clazz.getCall() == null) {
+				method = clazz.findFunction(name);
+				if (method == null)
+					throw new RuntimeException(new NoSuchMethodException("PHP:"+clazz.getName()+"::"+name));
+			}
+		}
+		this.method = method;
+	}
+
+	/**
+	 * Invoke the method with arguments <code>args</code>.
+	 * @return An instance of <code>PHPObject</code>, wrapping any return value of the method.
+	 */
+	public PHPObject call(Object ... args) {
+		deadline.check(env);
+		Value[] values = arguments.acquire(env, args);
+		long start = instrumentation.start();
+		boolean failed = true;
+		deadline.enter();
+		try {
+			Value result;
+			if (method != null)
+				result = method.callMethod(env, object, values);
+			else
+				result = object.callMethod(env, name, values);
+			failed = false;
+			return new PHPObject(env, result);
+		} catch (RuntimeException e) {
+			throw deadline.failed(e);
+		} finally {
+			deadline.exit();
+			arguments.release(values);
+			instrumentation.methodCalled(object, getName(), start, failed);
+		}
+	}
+
+	/**
+	 * @return The name of the method.
+	 */
+	public String getName() {
+		return name.toString();
+	}
+
+}
@@ -0,0 +1,328 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+
+/**
+ * <p>A {@link PHPListener} keeping running totals of parsing, execution and output, along with a
+ * latency histogram for every PHP function and method called from Java. The numbers can be read
+ * directly, or over JMX once the metrics are registered with the platform MBean server.</p>
+ * <pre>
+ * PHPMetrics metrics = new PHPMetrics();
+ * PHPEngine.getDefault().addListener(metrics);
+ * metrics.register("default");
+ * </pre>
+ * @author Aaron Collegeman aaron@collegeman.net
+ */
+public class PHPMetrics implements PHPListener, PHPMetricsMXBean {
+
+	private final AtomicLong parseCount = new AtomicLong();
+
+	private final AtomicLong parseNanos = new AtomicLong();
+
+	private final AtomicLong executeCount = new AtomicLong();
+
+	private final AtomicLong executeNanos = new AtomicLong();
+
+	private final AtomicLong outputBytes = new AtomicLong();
+
+	private volatile long memoryEstimate = 0;
+
+	private final AtomicLong maxMemoryEstimate = new AtomicLong();
+
+	private final ConcurrentMap<String, Histogram> functions = new ConcurrentHashMap<String, Histogram>();
+
+	private final ConcurrentMap<String, Histogram> methods = new ConcurrentHashMap<String, Histogram>();
+
+	private ObjectName objectName;
+
+	public void pageParsed(String page, long nanos) {
+		parseCount.incrementAndGet();
+		parseNanos.addAndGet(nanos);
+	}
+
+	public void pageExecuted(String page, long nanos, long memoryEstimate) {
+		executeCount.incrementAndGet();
+		executeNanos.addAndGet(nanos);
+
+		this.memoryEstimate = memoryEstimate;
+		long max;
+		while ((max = maxMemoryEstimate.get()) < memoryEstimate && !maxMemoryEstimate.compareAndSet(max, memoryEstimate));
+	}
+
+	public void functionCalled(String name, long nanos, boolean failed) {
+		histogram(functions, name).record(nanos, failed);
+	}
+
+	public void methodCalled(String className, String name, long nanos, boolean failed) {
+		histogram(methods, className + "::" + name).record(nanos, failed);
+	}
+
+	public void outputWritten(int bytes) {
+		outputBytes.addAndGet(bytes);
+	}
+
+	private static Histogram histogram(ConcurrentMap<String, Histogram> histograms, String name) {
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			Histogram created = new Histogram();
+			histogram = histograms.putIfAbsent(name, created);
+			if (histogram == null)
+				histogram = created;
+		}
+		return histogram;
+	}
+
+	public long getParseCount() {
+		return parseCount.get();
+	}
+
+	public long getParseTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(parseNanos.get());
+	}
+
+	public long getExecuteCount() {
+		return executeCount.get();
+	}
+
+	public long getExecuteTimeMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(executeNanos.get());
+	}
+
+	public long getOutputBytes() {
+		return outputBytes.get();
+	}
+
+	public long getMemoryEstimate() {
+		return memoryEstimate;
+	}
+
+	public long getMaxMemoryEstimate() {
+		return maxMemoryEstimate.get();
+	}
+
+	public List<CallStats> getFunctionStats() {
+		return stats(functions);
+	}
+
+	public List<CallStats> getMethodStats() {
+		return stats(methods);
+	}
+
+	/**
+	 * @return Statistics of the calls to the global PHP function <code>name</code>, or <code>null</code>
+	 * when it hasn't been called.
+	 */
+	public CallStats getFunctionStats(String name) {
+		Histogram histogram = functions.get(name);
+		return histogram != null ? histogram.stats(name) : null;
+	}
+
+	private static List<CallStats> stats(Map<String, Histogram> histograms) {
+		List<CallStats> stats = new ArrayList<CallStats>();
+		for (Map.Entry<String, Histogram> histogram : histograms.entrySet())
+			stats.add(histogram.getValue().stats(histogram.getKey()));
+
+		Collections.sort(stats, new Comparator<CallStats>() {
+			public int compare(CallStats a, CallStats b) {
+				return Long.compare(b.getTotalMillis(), a.getTotalMillis());
+			}
+		});
+		return stats;
+	}
+
+	public void reset() {
+		parseCount.set(0);
+		parseNanos.set(0);
+		executeCount.set(0);
+		executeNanos.set(0);
+		outputBytes.set(0);
+		memoryEstimate = 0;
+		maxMemoryEstimate.set(0);
+		functions.clear();
+		methods.clear();
+	}
+
+	/**
+	 * Publish these metrics with the platform MBean server, as
+	 * <code>net.collegeman.phpinjava:type=PHPMetrics,name=</code><i>name</i>.
+	 * @return This instance of <code>PHPMetrics</code>, to support method chaining.
+	 */
+	public synchronized PHPMetrics register(String name) {
+		if (name == null || name.length() < 1)
+			throw new IllegalArgumentException("[name] parameter must be defined");
+
+		try {
+			ObjectName objectName = new ObjectName("net.collegeman.phpinjava:type=PHPMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+			unregister();
+			this.objectName = objectName;
+		} catch (JMException e) {
+			throw new RuntimeException(e);
+		}
+		return this;
+	}
+
+	/**
+	 * Withdraw these metrics from the platform MBean server, if they were published.
+	 */
+	public synchronized void unregister() {
+		if (objectName == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (InstanceNotFoundException e) {
+			// already gone
+		} catch (JMException e) {
+			throw new RuntimeException(e);
+		}
+		objectName = null;
+	}
+
+	/**
+	 * The latencies of the calls to one function or method, counted in buckets of powers of two
+	 * nanoseconds, so that recording a call costs a few atomic increments.
+	 */
+	private static class Histogram {
+
+		private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+		private final AtomicLong count = new AtomicLong();
+
+		private final AtomicLong failures = new AtomicLong();
+
+		private final AtomicLong totalNanos = new AtomicLong();
+
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		private void record(long nanos, boolean failed) {
+			buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(1, nanos)));
+			count.incrementAndGet();
+			if (failed)
+				failures.incrementAndGet();
+			totalNanos.addAndGet(nanos);
+
+			long max;
+			while ((max = maxNanos.get()) < nanos && !maxNanos.compareAndSet(max, nanos));
+		}
+
+		/**
+		 * @return The upper bound of the bucket holding the call at <code>percentile</code>, in nanoseconds.
+		 */
+		private long percentile(long count, double percentile) {
+			long rank = (long) Math.ceil(count * percentile);
+			long seen = 0;
+			for (int i=0; i<buckets.length(); i++) {
+				seen += buckets.get(i);
+				if (seen >= rank && seen > 0)
+					return Math.min((2L << i) - 1, maxNanos.get());
+			}
+			return maxNanos.get();
+		}
+
+		private CallStats stats(String name) {
+			long count = this.count.get();
+			return new CallStats(name, count, failures.get(),
+				TimeUnit.NANOSECONDS.toMillis(totalNanos.get()),
+				count > 0 ? TimeUnit.NANOSECONDS.toMicros(totalNanos.get() / count) : 0,
+				TimeUnit.NANOSECONDS.toMicros(percentile(count, 0.5)),
+				TimeUnit.NANOSECONDS.toMicros(percentile(count, 0.99)),
+				TimeUnit.NANOSECONDS.toMicros(maxNanos.get()));
+		}
+
+	}
+
+	/**
+	 * Statistics of the calls to one PHP function or method. Percentiles are approximate, within a
+	 * factor of two.
+	 */
+	public static class CallStats {
+
+		private final String name;
+
+		private final long count;
+
+		private final long failures;
+
+		private final long totalMillis;
+
+		private final long meanMicros;
+
+		private final long medianMicros;
+
+		private final long p99Micros;
+
+		private final long maxMicros;
+
+		@java.beans.ConstructorProperties({ "name", "count", "failures", "totalMillis", "meanMicros", "medianMicros", "p99Micros", "maxMicros" })
+		public CallStats(String name, long count, long failures, long totalMillis, long meanMicros, long medianMicros, long p99Micros, long maxMicros) {
+			this.name = name;
+			this.count = count;
+			this.failures = failures;
+			this.totalMillis = totalMillis;
+			this.meanMicros = meanMicros;
+			this.medianMicros = medianMicros;
+			this.p99Micros = p99Micros;
+			this.maxMicros = maxMicros;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public long getFailures() {
+			return failures;
+		}
+
+		public long getTotalMillis() {
+			return totalMillis;
+		}
+
+		public long getMeanMicros() {
+			return meanMicros;
+		}
+
+		public long getMedianMicros() {
+			return medianMicros;
+		}
+
+		public long getP99Micros() {
+			return p99Micros;
+		}
+
+		public long getMaxMicros() {
+			return maxMicros;
+		}
+
+		public String toString() {
+			return name + ": " + count + " calls, " + failures + " failed, mean " + meanMicros + "us, median " + medianMicros + "us, p99 " + p99Micros + "us, max " + maxMicros + "us";
+		}
+
+	}
+
+}
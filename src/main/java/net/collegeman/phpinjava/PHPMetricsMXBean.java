@@ -0,0 +1,64 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+import java.util.*;
+
+/**
+ * The management interface of {@link PHPMetrics}. Times are in milliseconds unless stated otherwise.
+ * @author Aaron Collegeman aaron@collegeman.net
+ */
+public interface PHPMetricsMXBean {
+
+	long getParseCount();
+
+	long getParseTimeMillis();
+
+	long getExecuteCount();
+
+	long getExecuteTimeMillis();
+
+	long getOutputBytes();
+
+	/**
+	 * @return The memory estimate reported with the most recent page execution, in bytes.
+	 */
+	long getMemoryEstimate();
+
+	/**
+	 * @return The largest memory estimate reported with a page execution, in bytes.
+	 */
+	long getMaxMemoryEstimate();
+
+	/**
+	 * @return Statistics of the calls to each global PHP function, the most time-consuming first.
+	 */
+	List<PHPMetrics.CallStats> getFunctionStats();
+
+	/**
+	 * @return Statistics of the calls to each method of a PHP class, the most time-consuming first.
+	 */
+	List<PHPMetrics.CallStats> getMethodStats();
+
+	/**
+	 * Start counting from zero again.
+	 */
+	void reset();
+
+}
@@ -21,6 +21,10 @@ package net.collegeman.phpinjava;
 
 import com.caucho.quercus.env.*;
 
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
+
 /**
  * A thin wrapper around instances of <code>com.caucho.quercus.env.Value</code>, themselves representing
  * instances of PHP objects. This wrapper makes it easier to invoke methods and set and get properties.
@@ -43,16 +47,42 @@ public class PHPObject {
 	 * @return An instance of <code>PHPObject</code>, wrapping any return value of <code>name</code>ed method.
 	 */
 	public final PHPObject invokeMethod(String name, Object ... args) {
+		Deadline deadline = Deadline.of(env);
+		deadline.check(env);
+		Value values[];
 		if (args != null && args.length > 0) {
-			Value values[] = new Value[args.length];
+			values = new Value[args.length];
 			for(int i=0; i<args.length; i++)
 				values[i] = PHP.toValue(env, args[i]);
-				
-			return new PHPObject(env, wrapped.callMethod(env, new StringBuilderValue(name), values));
 		}
 		else {
-			return new PHPObject(env, wrapped.callMethod(env, new StringBuilderValue(name), new Value[]{}));
-		}	
+			values = new Value[]{};
+		}
+		
+		Instrumentation instrumentation = Instrumentation.of(env);
+		long start = instrumentation.start();
+		boolean failed = true;
+		deadline.enter();
+		try {
+			PHPObject result = new PHPObject(env, wrapped.callMethod(env, new StringBuilderValue(name), values));
+			failed = false;
+			return result;
+		} catch (RuntimeException e) {
+			throw deadline.failed(e);
+		} finally {
+			deadline.exit();
+			instrumentation.methodCalled(wrapped, name, start, failed);
+		}
+	}
+	
+	/**
+	 * Look up the method <code>name</code> of the wrapped <code>Value</code> object once, for 
+	 * invoking it many times with as little overhead as possible.
+	 * @return A reusable handle on the method.
+	 * @throws RuntimeException Wrapping a <code>NoSuchMethodException</code> when no such method is defined
+	 */
+	public final PHPMethod method(String name) {
+		return new PHPMethod(env, wrapped, name);
 	}
 	
 	/**
@@ -72,6 +102,124 @@ public class PHPObject {
 		return new PHPObject(env, wrapped.getField(env, new StringBuilderValue(name)));
 	}
 	
+	/**
+	 * @return <code>true</code> when the wrapped <code>Value</code> is PHP's <code>null</code>.
+	 */
+	public boolean isNull() {
+		return wrapped.isNull();
+	}
+	
+	/**
+	 * @return The wrapped <code>Value</code>, converted to an integer the way PHP would.
+	 */
+	public long asLong() {
+		return wrapped.toLong();
+	}
+	
+	/**
+	 * @return The wrapped <code>Value</code>, converted to a floating point number the way PHP would.
+	 */
+	public double asDouble() {
+		return wrapped.toDouble();
+	}
+	
+	/**
+	 * @return The wrapped <code>Value</code>, converted to a boolean the way PHP would.
+	 */
+	public boolean asBoolean() {
+		return wrapped.toBoolean();
+	}
+	
+	/**
+	 * Copy the entries of the wrapped PHP array into a <code>Map</code>, in order. Keys and scalar
+	 * values are converted to <code>Long</code>, <code>Double</code>, <code>Boolean</code> or
+	 * <code>String</code>; nested arrays and objects are wrapped in <code>PHPObject</code>s, and
+	 * only converted when asked to.
+	 * @throws IllegalStateException When the wrapped <code>Value</code> is not an array
+	 */
+	public Map<Object, Object> asMap() {
+		ArrayValue array = toArrayValue();
+		Map<Object, Object> map = new LinkedHashMap<Object, Object>(array.getSize() * 4 / 3 + 1);
+		for (Map.Entry<Value, Value> entry : array.entrySet())
+			map.put(Marshal.toJava(env, entry.getKey()), Marshal.toJava(env, entry.getValue()));
+		return map;
+	}
+	
+	/**
+	 * Copy the values of the wrapped PHP array into a <code>List</code>, in order, converted the 
+	 * same way as by {@link #asMap()}.
+	 * @throws IllegalStateException When the wrapped <code>Value</code> is not an array
+	 */
+	public List<Object> asList() {
+		ArrayValue array = toArrayValue();
+		List<Object> list = new ArrayList<Object>(array.getSize());
+		for (Value value : array.values())
+			list.add(Marshal.toJava(env, value));
+		return list;
+	}
+	
+	/**
+	 * Walk the entries of the wrapped PHP array, or of the wrapped PHP object the way <code>foreach</code> 
+	 * would, e.g., through its <code>Iterator</code> or <code>IteratorAggregate</code> methods, handing 
+	 * each key and value to <code>action</code> as it is reached. Nothing is copied: each key and value 
+	 * is converted as its turn comes, the same way as by {@link #asMap()}.
+	 * @throws IllegalStateException When the wrapped <code>Value</code> is neither an array nor an object
+	 */
+	public void forEachEntry(BiConsumer<Object, Object> action) {
+		if (action == null)
+			throw new IllegalArgumentException("[action] parameter must be defined");
+		Iterator<Map.Entry<Value, Value>> entries = toIterable().getIterator(env);
+		while (entries.hasNext()) {
+			Map.Entry<Value, Value> entry = entries.next();
+			action.accept(Marshal.toJava(env, entry.getKey()), Marshal.toJava(env, entry.getValue()));
+		}
+	}
+	
+	/**
+	 * Iterate over the values of the wrapped PHP array or object, as walked by {@link #forEachEntry(BiConsumer)},
+	 * converting each value only as it is reached.
+	 * @throws IllegalStateException When the wrapped <code>Value</code> is neither an array nor an object
+	 */
+	public Iterator<Object> iterator() {
+		final Iterator<Value> values = toIterable().getValueIterator(env);
+		return new Iterator<Object>() {
+			public boolean hasNext() {
+				return values.hasNext();
+			}
+			
+			public Object next() {
+				return Marshal.toJava(env, values.next());
+			}
+		};
+	}
+	
+	/**
+	 * Stream the values of the wrapped PHP array or object, as iterated by {@link #iterator()}. 
+	 * The stream is sequential, and pulls each value out of PHP as it is consumed.
+	 * @throws IllegalStateException When the wrapped <code>Value</code> is neither an array nor an object
+	 */
+	public Stream<Object> stream() {
+		Value value = toIterable();
+		Spliterator<Object> values = value instanceof ArrayValue 
+			? Spliterators.spliterator(iterator(), ((ArrayValue) value).getSize(), Spliterator.ORDERED)
+			: Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED);
+		return StreamSupport.stream(values, false);
+	}
+	
+	private Value toIterable() {
+		Value value = wrapped.toValue();
+		if (!value.isArray() && !value.isObject())
+			throw new IllegalStateException("PHP value is neither an array nor an object: "+value.getType());
+		return value;
+	}
+	
+	private ArrayValue toArrayValue() {
+		Value value = wrapped.toValue();
+		if (!(value instanceof ArrayValue))
+			throw new IllegalStateException("PHP value is not an array: "+value.getType());
+		return (ArrayValue) value;
+	}
+	
 	public Value getWrappedValue() {
 		return wrapped;
 	}
@@ -0,0 +1,299 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+import com.caucho.quercus.*;
+import com.caucho.quercus.page.*;
+import com.caucho.vfs.*;
+
+import java.io.*;
+import java.net.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * <p>A least-recently-used cache of parsed <code>QuercusPage</code>s, shared by every
+ * instance of <code>PHP</code>, so that the same source is only ever parsed once.</p>
+ * <p>Pages parsed from files are keyed by the file's canonical path, last-modified time and
+ * size, so a file that changes on disk is parsed again on its next use. Snippets are keyed
+ * by a hash of their content. Resources packed in a jar are keyed by their URL and the time
+ * their entry was last modified, and are parsed straight out of the jar.</p>
+ * <p>Files of {@link #MAP_THRESHOLD} bytes or more are memory-mapped for parsing, unless the
+ * engine compiles its pages.</p>
+ * <p>Pages preloaded from a directory indexed by {@link PHPPrecompiler} are pinned: they are never
+ * evicted to make room, and don't count towards the maximum size, until a newer version of the same 
+ * page is pinned in their place.</p>
+ * @author Aaron Collegeman aaron@collegeman.net
+ */
+public class PHPPageCache {
+
+	public static final int DEFAULT_MAX_SIZE = 256;
+
+	/**
+	 * The name reported to listeners for pages parsed from snippets.
+	 */
+	static final String SNIPPET = "snippet";
+
+	/**
+	 * The size in bytes from which source files are memory-mapped rather than read, when interpreted.
+	 */
+	public static final long MAP_THRESHOLD = 256 * 1024;
+
+	private int maxSize;
+
+	private long hits = 0;
+
+	private long misses = 0;
+
+	private final Instrumentation instrumentation;
+
+	private final LinkedHashMap<String, QuercusPage> pages = new LinkedHashMap<String, QuercusPage>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		protected boolean removeEldestEntry(Map.Entry<String, QuercusPage> eldest) {
+			evict();
+			return false;
+		}
+	};
+
+	/**
+	 * The keys of the pinned pages, by the name of the page.
+	 */
+	private final Map<String, String> pinned = new HashMap<String, String>();
+
+	private final Set<String> pinnedKeys = new HashSet<String>();
+
+	public PHPPageCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	public PHPPageCache(int maxSize) {
+		this(maxSize, new Instrumentation());
+	}
+
+	PHPPageCache(int maxSize, Instrumentation instrumentation) {
+		setMaxSize(maxSize);
+		this.instrumentation = instrumentation;
+	}
+
+	/**
+	 * Retrieve the parsed page for <code>file</code>, parsing it with <code>quercus</code>
+	 * if it isn't cached yet or if it has changed since it was cached.
+	 */
+	public QuercusPage getPage(Quercus quercus, File file) throws IOException {
+		return getPage(quercus, new FilePath(file.getCanonicalPath()));
+	}
+
+	/**
+	 * Retrieve the parsed page for the file at <code>path</code>, parsing it with <code>quercus</code>
+	 * if it isn't cached yet or if it has changed since it was cached. The path is asked for the size 
+	 * and last-modified time of the file, so a path looked up from a {@link PHPStatCache} answers 
+	 * from the cache.
+	 */
+	QuercusPage getPage(Quercus quercus, Path path) throws IOException {
+		return getPage(quercus, path, false);
+	}
+
+	/**
+	 * Retrieve the parsed page for the file at <code>path</code>, as by {@link #getPage(Quercus, Path)},
+	 * pinning it when <code>pin</code> is <code>true</code>.
+	 */
+	QuercusPage getPage(Quercus quercus, Path path, boolean pin) throws IOException {
+		String name = path.getNativePath();
+		long length = path.getLength();
+		String key = "file:" + name + "@" + path.getLastModified() + ":" + length;
+
+		QuercusPage page = lookup(key);
+		if (page == null) {
+			long start = instrumentation.start();
+			if (!quercus.isCompile() && length >= MAP_THRESHOLD)
+				page = parse(quercus, new MappedFileStream(path));
+			else
+				page = quercus.parse(path);
+			instrumentation.pageParsed(name, start);
+			store(key, page);
+		}
+		if (pin)
+			pin(name, key, page);
+		return page;
+	}
+
+	/**
+	 * Retrieve the parsed page for the classpath <code>resource</code>, parsing it with <code>quercus</code>
+	 * if it isn't cached yet or if it has changed since it was cached. Resources that are plain files 
+	 * are handled by {@link #getPage(Quercus, File)}; resources packed in a jar are streamed out of it.
+	 * Because such a page has no directory on disk, it can only include files by absolute path or 
+	 * through the include path.
+	 */
+	public QuercusPage getResource(Quercus quercus, URL resource) throws IOException {
+		if ("file".equals(resource.getProtocol())) {
+			try {
+				return getPage(quercus, new File(resource.toURI()));
+			} catch (URISyntaxException e) {
+				throw new IOException(e);
+			}
+		}
+
+		URLConnection connection = resource.openConnection();
+		if (connection instanceof JarURLConnection && ((JarURLConnection) connection).getJarEntry().isDirectory())
+			throw new FileNotFoundException("["+resource+"] is a directory inside a jar, and can't be loaded");
+		String key = "resource:" + resource + "@" + connection.getLastModified() + ":" + connection.getContentLengthLong();
+
+		QuercusPage page = lookup(key);
+		if (page == null) {
+			long start = instrumentation.start();
+			VfsStream stream = new VfsStream(connection.getInputStream(), null);
+			stream.setPath(new NullPath(resource.toString()));
+			page = parse(quercus, stream);
+			instrumentation.pageParsed(resource.toString(), start);
+			store(key, page);
+		}
+		return page;
+	}
+
+	/**
+	 * Parse the source read from <code>stream</code> with the script encoding of <code>quercus</code>,
+	 * without holding the whole of it in memory.
+	 */
+	private static QuercusPage parse(Quercus quercus, StreamImpl stream) throws IOException {
+		ReadStream is = new ReadStream(stream);
+		try {
+			is.setEncoding(quercus.getScriptEncoding());
+			return quercus.parse(is);
+		} finally {
+			is.close();
+		}
+	}
+
+	/**
+	 * Retrieve the parsed page for the PHP <code>snippet</code>, parsing it with <code>quercus</code>
+	 * if it isn't cached yet.
+	 */
+	public QuercusPage getSnippet(Quercus quercus, String snippet) throws IOException {
+		String key = "snippet:" + hash(snippet);
+
+		QuercusPage page = lookup(key);
+		if (page == null) {
+			long start = instrumentation.start();
+			page = quercus.parse(StringStream.open(snippet));
+			instrumentation.pageParsed(SNIPPET, start);
+			store(key, page);
+		}
+		return page;
+	}
+
+	private synchronized QuercusPage lookup(String key) {
+		QuercusPage page = pages.get(key);
+		if (page != null)
+			hits++;
+		else
+			misses++;
+		return page;
+	}
+
+	private synchronized void store(String key, QuercusPage page) {
+		pages.put(key, page);
+	}
+
+	private synchronized void pin(String name, String key, QuercusPage page) {
+		String previous = pinned.put(name, key);
+		if (previous != null)
+			pinnedKeys.remove(previous);
+		pinnedKeys.add(key);
+		pages.put(key, page);
+	}
+
+	/**
+	 * Evict the least-recently-used pages that aren't pinned, for as long as there are more than the maximum.
+	 */
+	private void evict() {
+		Iterator<String> keys = pages.keySet().iterator();
+		while (pages.size() - pinnedKeys.size() > maxSize && keys.hasNext()) {
+			if (!pinnedKeys.contains(keys.next()))
+				keys.remove();
+		}
+	}
+
+	private static String hash(String snippet) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] bytes = digest.digest(snippet.getBytes("UTF-8"));
+
+			StringBuilder hex = new StringBuilder(bytes.length * 2 + 12);
+			for (byte b : bytes) {
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+				hex.append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.append(':').append(snippet.length()).toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Change the maximum number of pages this cache will hold, evicting the least-recently-used
+	 * pages if it is already holding more than that.
+	 */
+	public synchronized void setMaxSize(int maxSize) {
+		if (maxSize < 1)
+			throw new IllegalArgumentException("[maxSize] parameter must be greater than zero");
+		this.maxSize = maxSize;
+		evict();
+	}
+
+	public synchronized int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return The number of pages currently held by this cache, pinned or not.
+	 */
+	public synchronized int getSize() {
+		return pages.size();
+	}
+
+	/**
+	 * @return The number of lookups answered from this cache.
+	 */
+	public synchronized long getHitCount() {
+		return hits;
+	}
+
+	/**
+	 * @return The number of lookups that required a page to be parsed.
+	 */
+	public synchronized long getMissCount() {
+		return misses;
+	}
+
+	/**
+	 * Drop every cached page, pinned or not, and reset the hit and miss counters.
+	 */
+	public synchronized void clear() {
+		pages.clear();
+		pinned.clear();
+		pinnedKeys.clear();
+		hits = 0;
+		misses = 0;
+	}
+
+}
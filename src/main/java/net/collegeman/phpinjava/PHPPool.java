@@ -0,0 +1,300 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * <p>A bounded pool of pre-initialized <code>PHP</code> instances, all loaded from
+ * the same script. Because a <code>PHP</code> instance owns a single, mutable
+ * execution environment, it must never be used by more than one thread at a time;
+ * a pool lets multi-threaded callers share the cost of loading the script
+ * without sharing the instance itself.</p>
+ * <p>Usage looks like</p>
+ * <pre>
+ * PHPPool pool = new PHPPool("classpath:/path/to/script.php", 8);
+ * PHP php = pool.borrow();
+ * try {
+ *   String result = php.fx("my_function", arg).toString();
+ * } finally {
+ *   pool.release(php);
+ * }
+ * </pre>
+ * <p>When an instance is released, its buffered output is cleared and its environment
+ * is restored to the {@link PHPSnapshot} taken right after the script was loaded: global
+ * variables, functions and classes. Objects referenced from global variables are restored
+ * by reference only.</p>
+ * @author Aaron Collegeman aaron@collegeman.net
+ */
+public class PHPPool {
+
+	private final PHPEngine engine;
+
+	private final String url;
+
+	private final ClassLoader classLoader;
+
+	private final int maxSize;
+
+	private final Semaphore permits;
+
+	private final LinkedList<Entry> idle = new LinkedList<Entry>();
+
+	private final Map<PHP, Entry> borrowed = new IdentityHashMap<PHP, Entry>();
+
+	private volatile long maxIdleMillis = 0;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * Create a pool of at most <code>maxSize</code> instances of <code>PHP</code>, each
+	 * of them loaded from <code>url</code>. Refer to the doc for {@link PHP#PHP(String)}
+	 * for a description of the <code>url</code> parameter.
+	 */
+	public PHPPool(String url, int maxSize) {
+		this(url, PHP.class.getClassLoader(), maxSize);
+	}
+
+	/**
+	 * Create a pool of at most <code>maxSize</code> instances of <code>PHP</code>, each
+	 * of them loaded from <code>url</code> with the given <code>ClassLoader</code>.
+	 */
+	public PHPPool(String url, ClassLoader classLoader, int maxSize) {
+		this(PHPEngine.getDefault(), url, classLoader, maxSize);
+	}
+
+	/**
+	 * Create a pool of at most <code>maxSize</code> instances of <code>PHP</code>, each
+	 * of them created by <code>engine</code> and loaded from <code>url</code> with the
+	 * given <code>ClassLoader</code>.
+	 */
+	public PHPPool(PHPEngine engine, String url, ClassLoader classLoader, int maxSize) {
+		if (engine == null)
+			throw new IllegalArgumentException("[engine] parameter must be defined");
+
+		if (url == null || url.length() < 1)
+			throw new IllegalArgumentException("[url] parameter must be defined");
+
+		if (classLoader == null)
+			throw new IllegalArgumentException("[classLoader] parameter must be defined");
+
+		if (maxSize < 1)
+			throw new IllegalArgumentException("[maxSize] parameter must be greater than zero");
+
+		this.engine = engine;
+		this.url = url;
+		this.classLoader = classLoader;
+		this.maxSize = maxSize;
+		this.permits = new Semaphore(maxSize, true);
+	}
+
+	/**
+	 * Set the amount of time an instance may sit unused in the pool before it is
+	 * discarded. A value of zero, the default, keeps idle instances forever.
+	 * @return This instance of <code>PHPPool</code>, to support method chaining.
+	 */
+	public PHPPool setMaxIdle(long maxIdle, TimeUnit unit) {
+		if (maxIdle < 0)
+			throw new IllegalArgumentException("[maxIdle] parameter must not be negative");
+		maxIdleMillis = unit.toMillis(maxIdle);
+		return this;
+	}
+
+	/**
+	 * Borrow an instance of <code>PHP</code> from the pool, waiting for as long as it takes
+	 * for one to become available.
+	 */
+	public PHP borrow() {
+		try {
+			permits.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		return checkOut();
+	}
+
+	/**
+	 * Borrow an instance of <code>PHP</code> from the pool, waiting at most <code>timeout</code>
+	 * for one to become available.
+	 * @throws RuntimeException Wrapping a <code>TimeoutException</code> when no instance became available in time
+	 */
+	public PHP borrow(long timeout, TimeUnit unit) {
+		try {
+			if (!permits.tryAcquire(timeout, unit))
+				throw new RuntimeException(new TimeoutException("No PHP instance available for ["+url+"] after "+timeout+" "+unit));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		return checkOut();
+	}
+
+	private PHP checkOut() {
+		Entry entry = null;
+		try {
+			List<Entry> evicted;
+			synchronized (this) {
+				if (closed)
+					throw new IllegalStateException("Pool has been closed");
+				evicted = evictIdle();
+				if (!idle.isEmpty())
+					entry = idle.removeFirst();
+			}
+			discard(evicted);
+
+			if (entry == null)
+				entry = new Entry(engine.create(url, classLoader));
+
+			synchronized (this) {
+				borrowed.put(entry.php, entry);
+			}
+			return entry.php;
+
+		} catch (RuntimeException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Return <code>php</code> to the pool, clearing its output and restoring its environment
+	 * so that the next borrower finds it as freshly loaded. An instance that is {@link PHP#isPoisoned() poisoned}
+	 * is discarded instead.
+	 */
+	public void release(PHP php) {
+		Entry entry;
+		synchronized (this) {
+			entry = borrowed.remove(php);
+		}
+		if (entry == null)
+			throw new IllegalArgumentException("PHP instance was not borrowed from this pool");
+
+		try {
+			// a call was stopped part way through by its deadline, so don't trust the instance again
+			if (php.isPoisoned()) {
+				php.close();
+				return;
+			}
+
+			php.clear();
+			entry.restore();
+			entry.lastUsed = System.currentTimeMillis();
+
+			List<Entry> evicted = Collections.singletonList(entry);
+			synchronized (this) {
+				if (!closed) {
+					idle.addFirst(entry);
+					evicted = evictIdle();
+				}
+			}
+			discard(evicted);
+		} finally {
+			permits.release();
+		}
+	}
+
+	/**
+	 * Take every idle instance that has been unused for longer than the configured max idle time out of the pool.
+	 * @return The instances taken out, to be discarded once the lock on the pool is released.
+	 */
+	private List<Entry> evictIdle() {
+		if (maxIdleMillis <= 0)
+			return Collections.emptyList();
+		List<Entry> evicted = new ArrayList<Entry>();
+		long cutoff = System.currentTimeMillis() - maxIdleMillis;
+		Iterator<Entry> entries = idle.iterator();
+		while (entries.hasNext()) {
+			Entry entry = entries.next();
+			if (entry.lastUsed < cutoff) {
+				entries.remove();
+				evicted.add(entry);
+			}
+		}
+		return evicted;
+	}
+
+	/**
+	 * Close the instances of <code>entries</code>.
+	 */
+	private static void discard(List<Entry> entries) {
+		for (Entry entry : entries)
+			entry.php.close();
+	}
+
+	/**
+	 * Close all idle instances, and refuse any further borrowing. Instances currently
+	 * borrowed may still be released, but will be closed.
+	 */
+	public void close() {
+		List<Entry> closing;
+		synchronized (this) {
+			closed = true;
+			closing = new ArrayList<Entry>(idle);
+			idle.clear();
+		}
+		discard(closing);
+	}
+
+	/**
+	 * @return The maximum number of instances this pool will hand out at once.
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @return The number of instances sitting idle in this pool.
+	 */
+	public synchronized int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * @return The number of instances currently borrowed from this pool.
+	 */
+	public synchronized int getBorrowedCount() {
+		return borrowed.size();
+	}
+
+	/**
+	 * A pooled instance of <code>PHP</code> along with the snapshot of its environment.
+	 */
+	private static class Entry {
+
+		private final PHP php;
+
+		private final PHPSnapshot snapshot;
+
+		private long lastUsed;
+
+		private Entry(PHP php) {
+			this.php = php;
+			this.snapshot = php.snapshot();
+		}
+
+		private void restore() {
+			php.restore(snapshot);
+		}
+
+	}
+
+}
@@ -0,0 +1,190 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+import com.caucho.vfs.Path;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * <p>Checks every PHP page in a directory ahead of time, and preloads them at run time. Quercus
+ * interprets PHP, so nothing compiled is packaged: at build time, the precompiler makes sure every page
+ * parses, and records the pages in an index file in the directory, {@value #INDEX}; at run time,
+ * when an instance of <code>PHP</code> is initialized with a directory holding such an index, every
+ * page listed is parsed into the page cache of the engine right away, rather than on first use, and
+ * pinned there, so it's never evicted. The directory may be on disk or packaged in a jar:</p>
+ * <pre>
+ * PHP php = new PHP("classpath:/php");
+ * </pre>
+ * <p>This project's own build runs the precompiler over <code>src/main/php</code>, when there is such
+ * a directory, packaging the pages and their index under <code>php/</code> on the classpath. Any other
+ * build can do the same by running <code>java net.collegeman.phpinjava.PHPPrecompiler /path/to/php</code>
+ * before packaging, e.g. with the <code>exec-maven-plugin</code>.</p>
+ * @author Aaron Collegeman aaron@collegeman.net
+ */
+public class PHPPrecompiler {
+
+	/**
+	 * The name of the index file written to each precompiled directory.
+	 */
+	public static final String INDEX = "php-in-java.index";
+
+	private final PHPEngine engine;
+
+	public PHPPrecompiler() {
+		this(PHPEngine.getDefault());
+	}
+
+	public PHPPrecompiler(PHPEngine engine) {
+		if (engine == null)
+			throw new IllegalArgumentException("[engine] parameter must be defined");
+		this.engine = engine;
+	}
+
+	/**
+	 * Parse every PHP page in <code>dir</code> and its subdirectories, and write the index of the pages to <code>dir</code>.
+	 * @return The paths of the pages parsed, relative to <code>dir</code>.
+	 * @throws RuntimeException Listing every page that failed to parse, in which case no index is written
+	 */
+	public List<String> precompile(File dir) {
+		List<String> pages = new ArrayList<String>();
+		find(dir, "", pages);
+
+		List<String> failures = parse(engine.getStatCache(dir).getRoot(), pages, false);
+		if (!failures.isEmpty()) {
+			StringBuilder message = new StringBuilder();
+			message.append(failures.size()).append(" of ").append(pages.size()).append(" PHP pages in [").append(dir.getAbsolutePath()).append("] failed to parse:");
+			for (String failure : failures)
+				message.append("\n  ").append(failure);
+			throw new RuntimeException(message.toString());
+		}
+
+		writeIndex(dir, pages);
+		return pages;
+	}
+
+	/**
+	 * Parse the pages listed in the index of <code>dir</code> into the page cache of the engine, and pin 
+	 * them there. Pages that fail to parse are left to fail when they are used.
+	 * @return The number of pages parsed, or zero when <code>dir</code> has no index.
+	 */
+	public int preload(File dir) {
+		return preload(engine.getStatCache(dir).getRoot());
+	}
+
+	/**
+	 * Parse the pages listed in the index of the directory at <code>dir</code>, on disk or on the classpath,
+	 * into the page cache of the engine, and pin them there.
+	 * @return The number of pages parsed, or zero when <code>dir</code> has no index.
+	 */
+	int preload(Path dir) {
+		List<String> pages = readIndex(dir);
+		if (pages == null)
+			return 0;
+		return pages.size() - parse(dir, pages, true).size();
+	}
+
+	/**
+	 * @return The description of each page that failed to parse.
+	 */
+	private List<String> parse(Path dir, List<String> pages, boolean pin) {
+		List<String> failures = new ArrayList<String>();
+		for (String page : pages) {
+			try {
+				engine.getPageCache().getPage(engine.getQuercus(), dir.lookup(page), pin);
+			} catch (Exception e) {
+				failures.add(page + ": " + e.getMessage());
+			}
+		}
+		return failures;
+	}
+
+	private static void find(File dir, String prefix, List<String> pages) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			throw new RuntimeException(new FileNotFoundException("No PHP directory at ["+dir.getAbsolutePath()+"]"));
+
+		Arrays.sort(files);
+		for (File file : files) {
+			if (file.isDirectory())
+				find(file, prefix + file.getName() + "/", pages);
+			else if (file.getName().endsWith(".php"))
+				pages.add(prefix + file.getName());
+		}
+	}
+
+	private static void writeIndex(File dir, List<String> pages) {
+		try {
+			Writer out = new OutputStreamWriter(new FileOutputStream(new File(dir, INDEX)), "UTF-8");
+			try {
+				out.write("# PHP pages precompiled by php-in-java\n");
+				for (String page : pages)
+					out.write(page + "\n");
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return The pages listed in the index of <code>dir</code>, or <code>null</code> when it has none.
+	 */
+	static List<String> readIndex(Path dir) {
+		Path index = dir.lookup(INDEX);
+		if (!index.canRead())
+			return null;
+
+		try {
+			List<String> pages = new ArrayList<String>();
+			BufferedReader in = new BufferedReader(new InputStreamReader(index.openRead(), "UTF-8"));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					line = line.trim();
+					if (line.length() > 0 && !line.startsWith("#"))
+						pages.add(line);
+				}
+			} finally {
+				in.close();
+			}
+			return pages;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Precompile each of the directories given as arguments.
+	 * @throws RuntimeException When any page fails to parse, failing the build that runs it
+	 */
+	public static void main(String[] args) {
+		if (args.length < 1)
+			throw new IllegalArgumentException("Usage: java " + PHPPrecompiler.class.getName() + " <directory> [<directory> ...]");
+
+		PHPPrecompiler precompiler = new PHPPrecompiler();
+		for (String arg : args) {
+			List<String> pages = precompiler.precompile(new File(arg));
+			System.out.println("Precompiled " + pages.size() + " PHP pages in [" + arg + "]");
+		}
+	}
+
+}
@@ -0,0 +1,294 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * <p>A local disk mirror of the PHP scripts an engine loads over HTTP. A script is downloaded once;
+ * after that, it is revalidated with a conditional <code>GET</code> (<code>If-None-Match</code> and
+ * <code>If-Modified-Since</code>) at most once per revalidation interval, and parsed from its local
+ * copy, so that its parsed page is shared through the page cache like that of any other file.</p>
+ * <p>When the origin can't be reached, or doesn't answer in time, the local copy is used as it is,
+ * and the origin is tried again after the retry interval, or the revalidation interval if that is
+ * shorter.</p>
+ * <p>A mirrored copy is executed only while it and its directory are owned by the user running the JVM,
+ * and can't be written by anyone else, so no other local user can plant a script in the cache. The
+ * directory is created accessible to its owner only.</p>
+ * @author Aaron Collegeman aaron@collegeman.net
+ */
+public class PHPScriptCache {
+
+	private static final Logger log = Logger.getLogger(PHPScriptCache.class.getName());
+
+	/**
+	 * Where scripts are mirrored by default, under the home directory of the user running the JVM.
+	 */
+	public static final File DEFAULT_DIRECTORY = new File(new File(System.getProperty("user.home"), ".php-in-java"), "scripts");
+
+	private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rwx------");
+
+	private final File directory;
+
+	private volatile long revalidateAfterMillis = 60000;
+
+	private volatile int timeoutMillis = 5000;
+
+	private volatile long retryAfterMillis = 5000;
+
+	private final ConcurrentMap<String, Long> validated = new ConcurrentHashMap<String, Long>();
+
+	/**
+	 * The scripts whose origin couldn't be reached the last time it was asked.
+	 */
+	private final Set<String> unreachable = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+	public PHPScriptCache(File directory) {
+		if (directory == null)
+			throw new IllegalArgumentException("[directory] parameter must be defined");
+		this.directory = directory;
+	}
+
+	/**
+	 * Set how long a script is used without asking its origin whether it changed. Defaults to one minute.
+	 * @return This instance of <code>PHPScriptCache</code>, to support method chaining.
+	 */
+	public PHPScriptCache setRevalidateAfter(long revalidateAfter, TimeUnit unit) {
+		if (revalidateAfter < 0)
+			throw new IllegalArgumentException("[revalidateAfter] parameter must not be negative");
+		revalidateAfterMillis = unit.toMillis(revalidateAfter);
+		return this;
+	}
+
+	/**
+	 * Set how long a script is used without trying its origin again, after the origin couldn't be
+	 * reached. Defaults to five seconds.
+	 * @return This instance of <code>PHPScriptCache</code>, to support method chaining.
+	 */
+	public PHPScriptCache setRetryAfter(long retryAfter, TimeUnit unit) {
+		if (retryAfter < 0)
+			throw new IllegalArgumentException("[retryAfter] parameter must not be negative");
+		retryAfterMillis = unit.toMillis(retryAfter);
+		return this;
+	}
+
+	/**
+	 * Set how long to wait for the origin of a script, to connect and then for each read, before
+	 * falling back to the local copy. Defaults to five seconds.
+	 * @return This instance of <code>PHPScriptCache</code>, to support method chaining.
+	 */
+	public PHPScriptCache setTimeout(long timeout, TimeUnit unit) {
+		if (timeout < 1)
+			throw new IllegalArgumentException("[timeout] parameter must be greater than zero");
+		timeoutMillis = (int) Math.min(Integer.MAX_VALUE, unit.toMillis(timeout));
+		return this;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Make sure the local copy of the script at <code>url</code> is current, downloading it if needed.
+	 * @return The local copy.
+	 * @throws RuntimeException When the script can't be downloaded and there is no local copy
+	 */
+	public File fetch(String url) {
+		String name = hash(url);
+		File source = new File(directory, name + ".php");
+		File validators = new File(directory, name + ".properties");
+
+		Object lock = locks.get(url);
+		if (lock == null) {
+			Object created = new Object();
+			lock = locks.putIfAbsent(url, created);
+			if (lock == null)
+				lock = created;
+		}
+
+		synchronized (lock) {
+			long now = System.currentTimeMillis();
+			Long last = validated.get(url);
+			long interval = unreachable.contains(url) ? Math.min(retryAfterMillis, revalidateAfterMillis) : revalidateAfterMillis;
+			if (last != null && source.isFile() && now - last < interval)
+				return checkPrivate(source);
+
+			try {
+				download(url, source, validators);
+				unreachable.remove(url);
+			} catch (IOException e) {
+				if (!source.isFile())
+					throw new RuntimeException(e);
+				unreachable.add(url);
+				log.log(Level.WARNING, "Unable to revalidate ["+url+"]; using the copy downloaded on "+new Date(source.lastModified()), e);
+			}
+			validated.put(url, now);
+			return checkPrivate(source);
+		}
+	}
+
+	/**
+	 * Make sure <code>source</code> and the cache directory belong to the user running the JVM, and that
+	 * no one else can write to them, on file systems that support POSIX permissions.
+	 * @return <code>source</code>
+	 * @throws RuntimeException When anyone else could have written <code>source</code>
+	 */
+	private File checkPrivate(File source) {
+		try {
+			for (Path path : new Path[] { directory.toPath(), source.toPath() }) {
+				PosixFileAttributeView view = Files.getFileAttributeView(path, PosixFileAttributeView.class);
+				if (view == null)
+					continue;
+				PosixFileAttributes attributes = view.readAttributes();
+				Set<PosixFilePermission> permissions = attributes.permissions();
+				UserPrincipal owner = processOwner();
+				if (!attributes.owner().equals(owner)
+						|| permissions.contains(PosixFilePermission.GROUP_WRITE) 
+						|| permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+					throw new IOException("["+path+"] is owned by "+attributes.owner().getName()+" with permissions "
+						+PosixFilePermissions.toString(permissions)+"; refusing to execute a script anyone but "
+						+owner.getName()+" could have written");
+				}
+			}
+			return source;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static volatile UserPrincipal ownerOfProcess;
+
+	/**
+	 * The owner of the files this process creates. <code>user.name</code> can't stand in for it: 
+	 * where the user has no name, as in some containers, it is <code>?</code>.
+	 */
+	private static UserPrincipal processOwner() throws IOException {
+		UserPrincipal owner = ownerOfProcess;
+		if (owner == null) {
+			Path probe = Files.createTempFile("php-in-java-owner", null);
+			try {
+				owner = Files.getOwner(probe);
+			} finally {
+				Files.delete(probe);
+			}
+			ownerOfProcess = owner;
+		}
+		return owner;
+	}
+
+	/**
+	 * Create the cache directory, and any missing parent, accessible to its owner only.
+	 */
+	private void createDirectory() throws IOException {
+		if (directory.isDirectory())
+			return;
+		if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+			Files.createDirectories(directory.toPath(), PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+			// the umask may have taken permissions away, but never adds any
+			Files.setPosixFilePermissions(directory.toPath(), OWNER_ONLY);
+		}
+		else if (!directory.mkdirs() && !directory.isDirectory())
+			throw new IOException("Unable to create script cache directory ["+directory.getAbsolutePath()+"]");
+	}
+
+	private void download(String url, File source, File validators) throws IOException {
+		Properties previous = new Properties();
+		if (source.isFile() && validators.isFile()) {
+			InputStream in = new FileInputStream(validators);
+			try {
+				previous.load(in);
+			} finally {
+				in.close();
+			}
+		}
+
+		HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+		conn.setConnectTimeout(timeoutMillis);
+		conn.setReadTimeout(timeoutMillis);
+		if (previous.getProperty("etag") != null)
+			conn.setRequestProperty("If-None-Match", previous.getProperty("etag"));
+		if (previous.getProperty("lastModified") != null)
+			conn.setIfModifiedSince(Long.parseLong(previous.getProperty("lastModified")));
+
+		try {
+			int status = conn.getResponseCode();
+			if (status == HttpURLConnection.HTTP_NOT_MODIFIED && source.isFile())
+				return;
+			if (status != HttpURLConnection.HTTP_OK)
+				throw new IOException("HTTP "+status+" fetching ["+url+"]");
+
+			createDirectory();
+
+			// the source is mirrored byte for byte, and only ever decoded by Quercus itself
+			Path download = Files.createTempFile(directory.toPath(), source.getName(), ".part");
+			try {
+				InputStream in = conn.getInputStream();
+				try {
+					Files.copy(in, download, StandardCopyOption.REPLACE_EXISTING);
+				} finally {
+					in.close();
+				}
+				Files.move(download, source.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(download);
+			}
+
+			Properties current = new Properties();
+			current.setProperty("url", url);
+			if (conn.getHeaderField("ETag") != null)
+				current.setProperty("etag", conn.getHeaderField("ETag"));
+			if (conn.getLastModified() > 0)
+				current.setProperty("lastModified", String.valueOf(conn.getLastModified()));
+			OutputStream out = new FileOutputStream(validators);
+			try {
+				current.store(out, "Validators of the PHP script downloaded from " + url);
+			} finally {
+				out.close();
+			}
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	private static String hash(String url) {
+		try {
+			byte[] bytes = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder(bytes.length * 2);
+			for (byte b : bytes) {
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+				hex.append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+}
@@ -0,0 +1,371 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+import com.caucho.quercus.*;
+import com.caucho.quercus.env.*;
+import com.caucho.quercus.page.*;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+import javax.script.*;
+
+/**
+ * <p>A <code>javax.script</code> engine wrapping an instance of {@link PHP}, as created by 
+ * {@link PHPScriptEngineFactory}. Scripts are PHP pages, starting with <code>&lt;?php</code>, executed 
+ * in the one environment of the wrapped instance, so each script sees the functions, classes and 
+ * global variables defined by the scripts before it; as with <code>include</code>, a script defining a 
+ * function that is already defined fails. Scripts are parsed through the page cache of the 
+ * engine, so evaluating the same script again costs its execution only, and {@link #compile(String)} 
+ * holds on to the parsed page outright.</p>
+ * <p>The engine scope of the default context is backed by the global variables of the environment. 
+ * Any other bindings given to <code>eval</code> are copied into the global variables for that one call: 
+ * when it returns, the global variables they set are put back the way they were. When those bindings 
+ * are the engine scope of the call, the values the script assigned to them, and any global variables 
+ * it created, are copied back into them, and the global variables it created are unset again. Global 
+ * variables the bindings don't name stay in view of the script, and keep what it assigns to them. Values 
+ * come back out converted the way {@link PHPObject#asMap()} converts them.</p>
+ * <p>Output goes to the writer of the context; a context with no writer leaves it to be retrieved 
+ * from {@link #getPHP()}. Failing scripts throw a <code>ScriptException</code>, except for calls 
+ * stopped by their deadline, which throw a {@link PHPTimeoutException}.</p>
+ * <p>Like the instance it wraps, an engine must not be used by more than one thread at a time.</p>
+ * @author Aaron Collegeman aaron@collegeman.net
+ */
+public class PHPScriptEngine extends AbstractScriptEngine implements Compilable, Invocable {
+
+	private final ScriptEngineFactory factory;
+
+	private final PHP php;
+
+	private final PHPBindings globals;
+
+	/**
+	 * Create an engine wrapping an instance of <code>PHP</code> created by <code>engine</code>.
+	 */
+	public PHPScriptEngine(PHPEngine engine) {
+		this(new PHPScriptEngineFactory(), engine);
+	}
+
+	PHPScriptEngine(ScriptEngineFactory factory, PHPEngine engine) {
+		if (engine == null)
+			throw new IllegalArgumentException("[engine] parameter must be defined");
+		this.factory = factory;
+		this.php = new PHP(engine);
+		this.globals = new PHPBindings(php);
+		context.setBindings(globals, ScriptContext.ENGINE_SCOPE);
+	}
+
+	/**
+	 * @return The instance of <code>PHP</code> this engine executes scripts with.
+	 */
+	public PHP getPHP() {
+		return php;
+	}
+
+	public ScriptEngineFactory getFactory() {
+		return factory;
+	}
+
+	/**
+	 * @return A new, empty set of bindings, copied into the global variables of the environment 
+	 * when passed to <code>eval</code>.
+	 */
+	public Bindings createBindings() {
+		return new SimpleBindings();
+	}
+
+	public Object eval(String script, ScriptContext context) throws ScriptException {
+		return eval(parse(script), context);
+	}
+
+	public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+		return eval(read(reader), context);
+	}
+
+	public CompiledScript compile(String script) throws ScriptException {
+		return new PHPCompiledScript(this, parse(script));
+	}
+
+	public CompiledScript compile(Reader reader) throws ScriptException {
+		return compile(read(reader));
+	}
+
+	Object eval(QuercusPage page, ScriptContext context) throws ScriptException {
+		CallBindings call = new CallBindings(context.getBindings(ScriptContext.ENGINE_SCOPE));
+		try {
+			call.bind(context.getBindings(ScriptContext.GLOBAL_SCOPE));
+			call.bind(context.getBindings(ScriptContext.ENGINE_SCOPE));
+			return Marshal.toJava(php.getEnv(), php.eval(page, context.getWriter()));
+		} catch (QuercusException e) {
+			throw new ScriptException(e);
+		} finally {
+			call.unbind();
+		}
+	}
+
+	/**
+	 * The variables Quercus creates among the global variables the first time a script uses them.
+	 */
+	private static final Set<String> SUPERGLOBALS = new HashSet<String>(Arrays.asList(
+		"GLOBALS", "_SERVER", "_GET", "_POST", "_FILES", "_REQUEST", "_COOKIE", "_SESSION", "_ENV", 
+		"HTTP_GET_VARS", "HTTP_POST_VARS", "HTTP_POST_FILES", "HTTP_COOKIE_VARS", "HTTP_SERVER_VARS", "PHP_SELF"));
+
+	/**
+	 * The global variables set from the bindings given to one call to <code>eval</code>, put back 
+	 * the way they were when the call returns.
+	 */
+	private final class CallBindings {
+
+		private final Env env;
+
+		/**
+		 * The engine scope of the call, when it isn't the global variables themselves.
+		 */
+		private final Bindings scope;
+
+		private final Set<String> existing;
+
+		/**
+		 * The values set, by name, to tell whether the script assigned others.
+		 */
+		private final Map<String, Value> bound = new HashMap<String, Value>();
+
+		/**
+		 * The values replaced, by name, or <code>null</code> for names that weren't set.
+		 */
+		private final Map<String, Value> replaced = new HashMap<String, Value>();
+
+		CallBindings(Bindings scope) {
+			this.env = php.initEnv();
+			this.scope = scope != globals ? scope : null;
+			this.existing = new HashSet<String>(env.getGlobalEnv().keySet());
+		}
+
+		/**
+		 * Copy <code>bindings</code> into the global variables, unless they are the global variables already.
+		 */
+		void bind(Bindings bindings) {
+			if (bindings == null || bindings == globals)
+				return;
+			for (Map.Entry<String, Object> binding : bindings.entrySet()) {
+				String name = binding.getKey();
+				
+				// leave out the names javax.script reserves for itself, e.g., javax.script.filename
+				if (name.startsWith("javax.script."))
+					continue;
+				if (!replaced.containsKey(name)) {
+					Var var = env.getGlobalEnv().get(name);
+					replaced.put(name, var != null ? var.toValue() : null);
+				}
+				php.set(name, binding.getValue());
+				bound.put(name, env.getGlobalValue(name));
+			}
+		}
+
+		/**
+		 * Copy what the script assigned back into the engine scope of the call, if it has one of 
+		 * its own, and put the global variables back the way they were.
+		 */
+		void unbind() {
+			List<String> created = new ArrayList<String>();
+			for (Map.Entry<String, Var> global : env.getGlobalEnv().entrySet()) {
+				String name = global.getKey();
+				boolean isNew = !existing.contains(name) && !bound.containsKey(name) && !SUPERGLOBALS.contains(name);
+				if (isNew)
+					created.add(name);
+				boolean assigned = bound.containsKey(name) && (scope != null && scope.containsKey(name) || global.getValue().toValue() != bound.get(name));
+				if (scope != null && (isNew || assigned))
+					scope.put(name, Marshal.toJava(env, global.getValue()));
+			}
+			
+			for (Map.Entry<String, Value> binding : replaced.entrySet()) {
+				String name = binding.getKey();
+				
+				// with the global variables as the engine scope, what the script assigned stays there
+				if (scope == null && env.getGlobalValue(name) != bound.get(name))
+					continue;
+				if (binding.getValue() != null)
+					env.setGlobalValue(name, binding.getValue());
+				else
+					env.unsetGlobalVar(name);
+			}
+			
+			if (scope != null) {
+				for (String name : created)
+					env.unsetGlobalVar(name);
+			}
+		}
+
+	}
+
+	private QuercusPage parse(String script) throws ScriptException {
+		if (script == null)
+			throw new NullPointerException("[script] parameter must be defined");
+		try {
+			return php.getEngine().getPageCache().getSnippet(php.getEngine().getQuercus(), script);
+		} catch (IOException e) {
+			throw new ScriptException(e);
+		} catch (QuercusException e) {
+			throw new ScriptException(e);
+		}
+	}
+
+	private static String read(Reader reader) throws ScriptException {
+		if (reader == null)
+			throw new NullPointerException("[reader] parameter must be defined");
+		try {
+			StringBuilder script = new StringBuilder();
+			char[] buffer = new char[8192];
+			int count;
+			while ((count = reader.read(buffer)) != -1)
+				script.append(buffer, 0, count);
+			return script.toString();
+		} catch (IOException e) {
+			throw new ScriptException(e);
+		}
+	}
+
+	/**
+	 * Call the global PHP function <code>name</code>, as by {@link PHP#fx(String, Object...)}.
+	 */
+	public Object invokeFunction(String name, Object ... args) throws ScriptException, NoSuchMethodException {
+		if (name == null)
+			throw new NullPointerException("[name] parameter must be defined");
+		PHPFunction function;
+		try {
+			function = php.function(name);
+		} catch (RuntimeException e) {
+			throw noSuchMethod(e);
+		}
+		try {
+			return Marshal.toJava(php.getEnv(), function.call(args).getWrappedValue());
+		} catch (QuercusException e) {
+			throw new ScriptException(e);
+		}
+	}
+
+	/**
+	 * Call the method <code>name</code> of the PHP object <code>thiz</code>, as by {@link PHPObject#invokeMethod(String, Object...)}.
+	 * @param thiz A <code>PHPObject</code>, as returned by this engine for PHP objects
+	 */
+	public Object invokeMethod(Object thiz, String name, Object ... args) throws ScriptException, NoSuchMethodException {
+		if (!(thiz instanceof PHPObject))
+			throw new IllegalArgumentException("[thiz] parameter must be a PHPObject");
+		if (name == null)
+			throw new NullPointerException("[name] parameter must be defined");
+		PHPMethod method;
+		try {
+			method = ((PHPObject) thiz).method(name);
+		} catch (RuntimeException e) {
+			throw noSuchMethod(e);
+		}
+		try {
+			return Marshal.toJava(php.getEnv(), method.call(args).getWrappedValue());
+		} catch (QuercusException e) {
+			throw new ScriptException(e);
+		}
+	}
+
+	private static NoSuchMethodException noSuchMethod(RuntimeException e) {
+		if (e.getCause() instanceof NoSuchMethodException)
+			return (NoSuchMethodException) e.getCause();
+		throw e;
+	}
+
+	/**
+	 * @return An implementation of <code>type</code> calling the global PHP functions of the same names 
+	 * as its methods, or <code>null</code> when any of them isn't defined.
+	 */
+	public <T> T getInterface(Class<T> type) {
+		checkInterface(type);
+		for (Method method : type.getMethods()) {
+			if (php.getEnv().findFunction(method.getName()) == null)
+				return null;
+		}
+		return proxy(type, null);
+	}
+
+	/**
+	 * @return An implementation of <code>type</code> calling the methods of the PHP object <code>thiz</code> 
+	 * of the same names as its methods.
+	 */
+	public <T> T getInterface(Object thiz, Class<T> type) {
+		checkInterface(type);
+		if (!(thiz instanceof PHPObject))
+			throw new IllegalArgumentException("[thiz] parameter must be a PHPObject");
+		return proxy(type, thiz);
+	}
+
+	private static void checkInterface(Class<?> type) {
+		if (type == null || !type.isInterface())
+			throw new IllegalArgumentException("[type] parameter must be an interface");
+	}
+
+	/**
+	 * The proxy's <code>equals</code>, <code>hashCode</code> and <code>toString</code> are those of its identity;
+	 * every other method is a call into PHP.
+	 */
+	private <T> T proxy(final Class<T> type, final Object thiz) {
+		return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{ type }, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getDeclaringClass() == Object.class) {
+					if (method.getName().equals("equals"))
+						return args[0] == proxy;
+					else if (method.getName().equals("hashCode"))
+						return System.identityHashCode(proxy);
+					else
+						return type.getName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+				}
+				Object result = thiz != null ? invokeMethod(thiz, method.getName(), args) : invokeFunction(method.getName(), args);
+				return coerce(result, method.getReturnType());
+			}
+		}));
+	}
+
+	/**
+	 * Convert the numbers PHP returns as <code>Long</code>s and <code>Double</code>s to the type declared by an interface.
+	 * <code>null</code> becomes the default value of a primitive type, as PHP's <code>null</code> is zero or false.
+	 */
+	private static Object coerce(Object value, Class<?> type) {
+		if (type == void.class)
+			return null;
+		if (value == null && type.isPrimitive())
+			return Array.get(Array.newInstance(type, 1), 0);
+		if (!(value instanceof Number))
+			return value;
+		Number number = (Number) value;
+		if (type == int.class || type == Integer.class)
+			return number.intValue();
+		else if (type == long.class || type == Long.class)
+			return number.longValue();
+		else if (type == double.class || type == Double.class)
+			return number.doubleValue();
+		else if (type == float.class || type == Float.class)
+			return number.floatValue();
+		else if (type == short.class || type == Short.class)
+			return number.shortValue();
+		else if (type == byte.class || type == Byte.class)
+			return number.byteValue();
+		return value;
+	}
+
+}
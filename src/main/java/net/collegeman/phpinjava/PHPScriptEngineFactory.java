@@ -0,0 +1,114 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+import java.util.*;
+
+import javax.script.*;
+
+/**
+ * <p>Registers PHP-in-Java with <code>javax.script</code>, under the name <code>php-in-java</code>.
+ * Quercus registers an engine of its own for the name <code>php</code> and the extension <code>.php</code>, 
+ * so ask for this one by name:</p>
+ * <pre>
+ * ScriptEngine php = new ScriptEngineManager().getEngineByName("php-in-java");
+ * </pre>
+ * <p>Each engine wraps an instance of <code>PHP</code> created by the default {@link PHPEngine}; 
+ * see {@link PHPScriptEngine} for the details.</p>
+ * @author Aaron Collegeman aaron@collegeman.net
+ */
+public class PHPScriptEngineFactory implements ScriptEngineFactory {
+
+	public static final String NAME = "php-in-java";
+
+	public String getEngineName() {
+		return "PHP-in-Java";
+	}
+
+	public String getEngineVersion() {
+		Package pkg = PHPScriptEngineFactory.class.getPackage();
+		return pkg != null && pkg.getImplementationVersion() != null ? pkg.getImplementationVersion() : "unknown";
+	}
+
+	public List<String> getExtensions() {
+		return Collections.unmodifiableList(Arrays.asList("php"));
+	}
+
+	public List<String> getMimeTypes() {
+		return Collections.unmodifiableList(Arrays.asList("application/x-httpd-php", "text/x-php"));
+	}
+
+	public List<String> getNames() {
+		return Collections.unmodifiableList(Arrays.asList(NAME, "phpinjava"));
+	}
+
+	public String getLanguageName() {
+		return "php";
+	}
+
+	public String getLanguageVersion() {
+		return "5.2";
+	}
+
+	/**
+	 * An engine wraps a single PHP environment, which must not be used by more than one thread at a time,
+	 * so the value of the <code>THREADING</code> parameter is <code>null</code>.
+	 */
+	public Object getParameter(String key) {
+		if (ScriptEngine.ENGINE.equals(key))
+			return getEngineName();
+		else if (ScriptEngine.ENGINE_VERSION.equals(key))
+			return getEngineVersion();
+		else if (ScriptEngine.NAME.equals(key))
+			return NAME;
+		else if (ScriptEngine.LANGUAGE.equals(key))
+			return getLanguageName();
+		else if (ScriptEngine.LANGUAGE_VERSION.equals(key))
+			return getLanguageVersion();
+		else
+			return null;
+	}
+
+	public String getMethodCallSyntax(String obj, String method, String ... args) {
+		StringBuilder syntax = new StringBuilder("$").append(obj).append("->").append(method).append("(");
+		for (int i=0; i<args.length; i++) {
+			if (i > 0)
+				syntax.append(", ");
+			syntax.append("$").append(args[i]);
+		}
+		return syntax.append(")").toString();
+	}
+
+	public String getOutputStatement(String toDisplay) {
+		return "echo '" + toDisplay.replace("\\", "\\\\").replace("'", "\\'") + "';";
+	}
+
+	public String getProgram(String ... statements) {
+		StringBuilder program = new StringBuilder("<?php\n");
+		for (String statement : statements)
+			program.append(statement).append(";\n");
+		return program.toString();
+	}
+
+	public ScriptEngine getScriptEngine() {
+		return new PHPScriptEngine(this, PHPEngine.getDefault());
+	}
+
+}
@@ -0,0 +1,181 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+import com.caucho.quercus.env.*;
+import com.caucho.quercus.program.*;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * <p>The state of the execution environment of a <code>PHP</code> instance at one point in time:
+ * its global variables, and the functions and classes defined in it. Taken with {@link PHP#snapshot()},
+ * and put back with {@link PHP#restore(PHPSnapshot)}, which is far cheaper than loading the script again.</p>
+ * <p>Arrays are copied on write, so a snapshot costs little more than the table of global variables
+ * until either side modifies them. Functions and classes are recorded only where they differ from
+ * the interpreter's built-in ones. Objects are restored by reference only, and constants, ini settings
+ * and the record of files already included are not restored.</p>
+ * @author Aaron Collegeman aaron@collegeman.net
+ */
+public final class PHPSnapshot {
+
+	private static final Logger log = Logger.getLogger(PHPSnapshot.class.getName());
+
+	private final Env env;
+
+	private final Map<String, Value> globals = new HashMap<String, Value>();
+
+	private final int[] functionIds;
+
+	private final AbstractFunction[] functions;
+
+	private final int[] classIds;
+
+	private final ClassDef[] classDefs;
+
+	private final QuercusClass[] classes;
+
+	/**
+	 * The classes already built, by name, including those shared with other instances loaded from the same page.
+	 */
+	private final List<Map<String, QuercusClass>> builtClasses = new ArrayList<Map<String, QuercusClass>>();
+
+	PHPSnapshot(Env env) {
+		this.env = env;
+
+		for (Map.Entry<String, Var> global : env.getGlobalEnv().entrySet())
+			globals.put(global.getKey(), global.getValue().toValue().copy());
+
+		AbstractFunction[] builtIn = env.getQuercus().getFunctionMap();
+		List<Integer> ids = new ArrayList<Integer>();
+		for (int i=0; i<env._fun.length; i++) {
+			if (env._fun[i] != null && (i >= builtIn.length || env._fun[i] != builtIn[i]))
+				ids.add(i);
+		}
+		functionIds = toArray(ids);
+		functions = new AbstractFunction[functionIds.length];
+		for (int i=0; i<functionIds.length; i++)
+			functions[i] = env._fun[functionIds[i]];
+
+		ids.clear();
+		for (int i=0; i<env._classDef.length; i++) {
+			if (env._classDef[i] != null || (i < env._qClass.length && env._qClass[i] != null))
+				ids.add(i);
+		}
+		classIds = toArray(ids);
+		classDefs = new ClassDef[classIds.length];
+		classes = new QuercusClass[classIds.length];
+		for (int i=0; i<classIds.length; i++) {
+			classDefs[i] = env._classDef[classIds[i]];
+			classes[i] = classIds[i] < env._qClass.length ? env._qClass[classIds[i]] : null;
+		}
+
+		for (Field field : CLASS_CACHES) {
+			try {
+				@SuppressWarnings("unchecked")
+				Map<String, QuercusClass> cache = (Map<String, QuercusClass>) field.get(env);
+				builtClasses.add(new HashMap<String, QuercusClass>(cache));
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] array = new int[list.size()];
+		for (int i=0; i<array.length; i++)
+			array[i] = list.get(i);
+		return array;
+	}
+
+	/**
+	 * Put the state recorded by this snapshot back into the environment it was taken from.
+	 */
+	void restore(Env env) {
+		if (env != this.env)
+			throw new IllegalArgumentException("Snapshot was taken from a different PHP instance");
+
+		restoreGlobals(env);
+		restoreFunctions(env);
+		restoreClasses(env);
+	}
+
+	private void restoreGlobals(Env env) {
+		List<String> added = new ArrayList<String>();
+		for (String name : env.getGlobalEnv().keySet()) {
+			if (!globals.containsKey(name))
+				added.add(name);
+		}
+		for (String name : added)
+			env.unsetGlobalVar(name);
+
+		for (Map.Entry<String, Value> global : globals.entrySet())
+			env.setGlobalValue(global.getKey(), global.getValue().copy());
+	}
+
+	private void restoreFunctions(Env env) {
+		AbstractFunction[] builtIn = env.getQuercus().getFunctionMap();
+		AbstractFunction[] fun = env._fun;
+		for (int i=0; i<fun.length; i++)
+			fun[i] = i < builtIn.length ? builtIn[i] : null;
+		for (int i=0; i<functionIds.length; i++)
+			fun[functionIds[i]] = functions[i];
+	}
+
+	private void restoreClasses(Env env) {
+		Arrays.fill(env._classDef, null);
+		Arrays.fill(env._qClass, null);
+		for (int i=0; i<classIds.length; i++) {
+			env._classDef[classIds[i]] = classDefs[i];
+			if (classIds[i] < env._qClass.length)
+				env._qClass[classIds[i]] = classes[i];
+		}
+
+		// classes are also cached by name, which Env offers no way to clear; the ones already 
+		// built when the snapshot was taken go back in, rather than being built all over again
+		for (int i=0; i<CLASS_CACHES.size(); i++) {
+			try {
+				@SuppressWarnings("unchecked")
+				Map<String, QuercusClass> cache = (Map<String, QuercusClass>) CLASS_CACHES.get(i).get(env);
+				cache.clear();
+				cache.putAll(builtClasses.get(i));
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	private static final List<Field> CLASS_CACHES = new ArrayList<Field>();
+
+	static {
+		for (String name : new String[] { "_classMap", "_lowerClassMap" }) {
+			try {
+				Field field = Env.class.getDeclaredField(name);
+				field.setAccessible(true);
+				CLASS_CACHES.add(field);
+			} catch (Exception e) {
+				log.log(Level.WARNING, "Unable to access Env."+name+"; classes defined after a snapshot may survive its restore", e);
+			}
+		}
+	}
+
+}
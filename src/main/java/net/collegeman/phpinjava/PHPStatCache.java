@@ -0,0 +1,190 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+import com.caucho.vfs.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * <p>A cache of what the file system says about the files under a directory of PHP: whether they
+ * exist, what they are, how long they are and when they were last modified. Instances of 
+ * <code>PHP</code> initialized with a directory resolve their includes from it, so once a framework 
+ * is warmed up, an <code>include</code> costs a few hash lookups instead of a round of system calls: 
+ * Quercus keeps the paths its includes resolve to, and the pages parsed from them, and checks both 
+ * against this cache.</p>
+ * <p>Every <code>PHP</code> instance rooted at the same directory shares the one cache kept by its 
+ * {@link PHPEngine}; see {@link PHPEngine#getStatCache(File)}. What the cache holds is checked against
+ * the file system again once it is older than the revalidation interval, two seconds by default.
+ * Files written through the cache's own paths are checked again as soon as they are closed, but PHP's 
+ * <code>clearstatcache()</code> doesn't reach this cache; call {@link #clear()} instead.</p>
+ * @author Aaron Collegeman aaron@collegeman.net
+ */
+public class PHPStatCache {
+
+	public static final long DEFAULT_REVALIDATE_AFTER = 2000;
+
+	/**
+	 * The number of files the cache holds at most, before it starts over.
+	 */
+	static final int MAX_SIZE = 16 * 1024;
+
+	private final File directory;
+
+	private final StatCachedPath root;
+
+	private volatile long revalidateAfter;
+
+	private final ConcurrentMap<String, Stat> stats = new ConcurrentHashMap<String, Stat>();
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	PHPStatCache(File directory, long revalidateAfter) {
+		this.directory = directory;
+		this.revalidateAfter = revalidateAfter;
+		FilePath path = new FilePath(directory.getAbsolutePath());
+		this.root = new StatCachedPath(path.getRoot(), path.getUserPath(), path.getPath(), this);
+	}
+
+	/**
+	 * @return The directory this cache covers.
+	 */
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Set how long the cache trusts what it holds before checking with the file system again. 
+	 * Zero means never checking again, for deployments whose files don't change.
+	 * @return This instance of <code>PHPStatCache</code>, to support method chaining.
+	 */
+	public PHPStatCache setRevalidateAfter(long revalidateAfter, TimeUnit unit) {
+		if (revalidateAfter < 0)
+			throw new IllegalArgumentException("[revalidateAfter] parameter must not be negative");
+		this.revalidateAfter = unit.toMillis(revalidateAfter);
+		return this;
+	}
+
+	/**
+	 * @return The number of files the cache holds.
+	 */
+	public int getSize() {
+		return stats.size();
+	}
+
+	/**
+	 * @return The number of questions answered from the cache.
+	 */
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	/**
+	 * @return The number of questions that had to be put to the file system.
+	 */
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	/**
+	 * Forget everything, so that every file is checked with the file system on its next use.
+	 */
+	public void clear() {
+		stats.clear();
+	}
+
+	/**
+	 * @return The path of the directory this cache covers, from which every path looked up is covered, too.
+	 */
+	com.caucho.vfs.Path getRoot() {
+		return root;
+	}
+
+	Stat stat(StatCachedPath path) {
+		String key = path.getFullPath();
+		long now = System.currentTimeMillis();
+		Stat stat = stats.get(key);
+		if (stat != null && (revalidateAfter == 0 || now - stat.checked < revalidateAfter)) {
+			hits.incrementAndGet();
+			return stat;
+		}
+
+		misses.incrementAndGet();
+		stat = Stat.of(path.getFile(), now);
+		if (stats.size() >= MAX_SIZE)
+			stats.clear();
+		stats.put(key, stat);
+		return stat;
+	}
+
+	void invalidate(StatCachedPath path) {
+		stats.remove(path.getFullPath());
+	}
+
+	/**
+	 * What the file system said about a file, and when.
+	 */
+	static final class Stat {
+
+		final boolean exists;
+
+		final boolean file;
+
+		final boolean directory;
+
+		final boolean readable;
+
+		final long length;
+
+		final long lastModified;
+
+		final long checked;
+
+		private Stat(boolean exists, boolean file, boolean directory, boolean readable, long length, long lastModified, long checked) {
+			this.exists = exists;
+			this.file = file;
+			this.directory = directory;
+			this.readable = readable;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.checked = checked;
+		}
+
+		static Stat of(File file, long now) {
+			java.nio.file.Path path = file.toPath();
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+				return new Stat(true, attributes.isRegularFile(), attributes.isDirectory(), Files.isReadable(path),
+					attributes.size(), attributes.lastModifiedTime().toMillis(), now);
+			} catch (IOException e) {
+				return new Stat(false, false, false, false, 0, 0, now);
+			}
+		}
+
+	}
+
+}
@@ -0,0 +1,48 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+/**
+ * Thrown by a call into PHP that was stopped because it ran past its deadline, as set by
+ * {@link PHP#setTimeout(long, java.util.concurrent.TimeUnit)} or 
+ * {@link PHP#withTimeout(long, java.util.concurrent.TimeUnit, java.util.function.Function)}.
+ * The instance of <code>PHP</code> the call was made on is marked as poisoned; see {@link PHP#isPoisoned()}.
+ * @author Aaron Collegeman aaron@collegeman.net
+ */
+public class PHPTimeoutException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long timeout;
+
+	public PHPTimeoutException(long timeout, Throwable cause) {
+		super("PHP call timed out after "+timeout+" ms", cause);
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @return The number of milliseconds the call was given.
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+}
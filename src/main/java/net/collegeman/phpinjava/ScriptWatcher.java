@@ -0,0 +1,165 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+import java.io.*;
+import java.lang.ref.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+/**
+ * Watches the directories of the scripts loaded by instances of <code>PHP</code> in watch mode,
+ * and has those instances reload their script when anything in its directory changes. One
+ * daemon thread serves the whole JVM, and it is the thread reloads run on. Instances are only
+ * weakly referenced, so forgetting to stop watching doesn't keep an instance alive.
+ */
+class ScriptWatcher implements Runnable {
+
+	private static final Logger log = Logger.getLogger(ScriptWatcher.class.getName());
+
+	private static ScriptWatcher instance;
+
+	/**
+	 * @return The watcher shared by every instance of <code>PHP</code>, started on first use.
+	 */
+	static synchronized ScriptWatcher getInstance() {
+		if (instance == null) {
+			try {
+				instance = new ScriptWatcher(FileSystems.getDefault().newWatchService());
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			Thread thread = new Thread(instance, "php-script-watcher");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		return instance;
+	}
+
+	/**
+	 * How long the directory of a script has to stay unchanged before the script is reloaded.
+	 */
+	static final long SETTLE_MILLIS = 100;
+
+	private final WatchService service;
+
+	private final Map<WatchKey, List<WeakReference<PHP>>> watching = new HashMap<WatchKey, List<WeakReference<PHP>>>();
+
+	private ScriptWatcher(WatchService service) {
+		this.service = service;
+	}
+
+	/**
+	 * Start reloading <code>php</code> whenever a file in <code>dir</code> is created, changed or deleted.
+	 */
+	synchronized void watch(File dir, PHP php) {
+		WatchKey key;
+		try {
+			key = dir.toPath().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		List<WeakReference<PHP>> instances = watching.get(key);
+		if (instances == null) {
+			instances = new ArrayList<WeakReference<PHP>>();
+			watching.put(key, instances);
+		}
+		instances.add(new WeakReference<PHP>(php));
+	}
+
+	/**
+	 * Stop reloading <code>php</code>, and stop watching any directory no other instance needs anymore.
+	 */
+	synchronized void unwatch(PHP php) {
+		Iterator<Map.Entry<WatchKey, List<WeakReference<PHP>>>> entries = watching.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<WatchKey, List<WeakReference<PHP>>> entry = entries.next();
+			prune(entry.getValue(), php);
+			if (entry.getValue().isEmpty()) {
+				entry.getKey().cancel();
+				entries.remove();
+			}
+		}
+	}
+
+	/**
+	 * Drop the references to <code>php</code> and to instances that have been garbage collected.
+	 */
+	private static void prune(List<WeakReference<PHP>> instances, PHP php) {
+		Iterator<WeakReference<PHP>> refs = instances.iterator();
+		while (refs.hasNext()) {
+			PHP watched = refs.next().get();
+			if (watched == null || watched == php)
+				refs.remove();
+		}
+	}
+
+	public void run() {
+		while (true) {
+			Set<WatchKey> changed = new LinkedHashSet<WatchKey>();
+			try {
+				// saving a file fires several events, and may take several writes: wait for 
+				// things to settle down, then reload once for all of them
+				WatchKey key = service.take();
+				while (key != null) {
+					key.pollEvents();
+					changed.add(key);
+					key.reset();
+					key = service.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS);
+				}
+			} catch (InterruptedException e) {
+				return;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+
+			Set<PHP> reload = Collections.newSetFromMap(new IdentityHashMap<PHP, Boolean>());
+			synchronized (this) {
+				for (WatchKey key : changed) {
+					List<WeakReference<PHP>> instances = watching.get(key);
+					if (instances == null)
+						continue;
+					prune(instances, null);
+					for (WeakReference<PHP> ref : instances) {
+						PHP php = ref.get();
+						if (php != null)
+							reload.add(php);
+					}
+					if (instances.isEmpty() || !key.isValid()) {
+						key.cancel();
+						watching.remove(key);
+					}
+				}
+			}
+
+			for (PHP php : reload) {
+				try {
+					php.reload();
+				} catch (RuntimeException e) {
+					log.log(Level.WARNING, "Unable to reload PHP script", e);
+				}
+			}
+		}
+	}
+
+}
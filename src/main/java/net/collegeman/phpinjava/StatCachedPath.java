@@ -0,0 +1,134 @@
+package net.collegeman.phpinjava;
+
+/**
+ * PHP-in-Java PHP wrapper for Java and Groovy.
+ * Copyright (C) 2009-2010 Collegeman.net, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along
+ * with this program; if not, write to the Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+import com.caucho.vfs.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A file path under the root of a {@link PHPStatCache}, answering questions about the file it
+ * refers to from the cache rather than from the file system. Every path looked up from it is
+ * another <code>StatCachedPath</code> of the same cache, so the include paths and the pages
+ * Quercus resolves from a root directory set as the working directory are all covered.
+ */
+class StatCachedPath extends FilePath {
+
+	private final PHPStatCache cache;
+
+	StatCachedPath(FilesystemPath root, String userPath, String path, PHPStatCache cache) {
+		super(root, userPath, path);
+		this.cache = cache;
+	}
+
+	public Path fsWalk(String userPath, Map<String, Object> attributes, String path) {
+		return new StatCachedPath(_root, userPath, path, cache);
+	}
+
+	/**
+	 * Keep lookups out of the lookup cache Resin shares between all paths, which would hand back plain 
+	 * <code>FilePath</code>s, equal to ours, for them.
+	 */
+	protected boolean isPathCacheable() {
+		return false;
+	}
+
+	protected Path copy() {
+		return new StatCachedPath(getRoot(), getUserPath(), getPath(), cache);
+	}
+
+	public boolean exists() {
+		return cache.stat(this).exists;
+	}
+
+	public boolean isFile() {
+		return cache.stat(this).file;
+	}
+
+	public boolean isDirectory() {
+		return cache.stat(this).directory;
+	}
+
+	public boolean canRead() {
+		return cache.stat(this).readable;
+	}
+
+	public long getLength() {
+		return cache.stat(this).length;
+	}
+
+	public long getLastModified() {
+		return cache.stat(this).lastModified;
+	}
+
+	public StreamImpl openWriteImpl() throws IOException {
+		cache.invalidate(this);
+		return openStream(new FileOutputStream(getFile()));
+	}
+
+	public StreamImpl openAppendImpl() throws IOException {
+		cache.invalidate(this);
+		return openStream(new FileOutputStream(getFile(), true));
+	}
+
+	/**
+	 * A stream writing to <code>out</code> as <code>FilePath</code> opens it, which drops what the 
+	 * cache knows about the file once more when closed: a stat taken while it was being written, 
+	 * by another thread or by Quercus itself, would otherwise be left describing it as it was.
+	 */
+	private StreamImpl openStream(FileOutputStream out) {
+		FileWriteStream stream = new FileWriteStream(out, this) {
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					cache.invalidate(StatCachedPath.this);
+				}
+			}
+		};
+		stream.setNewline(getNewlineString().getBytes());
+		return stream;
+	}
+
+	public boolean mkdir() throws IOException {
+		cache.invalidate(this);
+		return super.mkdir();
+	}
+
+	public boolean mkdirs() throws IOException {
+		cache.invalidate(this);
+		return super.mkdirs();
+	}
+
+	public boolean remove() {
+		cache.invalidate(this);
+		return super.remove();
+	}
+
+	public boolean renameTo(Path path) {
+		cache.invalidate(this);
+		if (path instanceof StatCachedPath)
+			((StatCachedPath) path).cache.invalidate((StatCachedPath) path);
+		return super.renameTo(path);
+	}
+
+}
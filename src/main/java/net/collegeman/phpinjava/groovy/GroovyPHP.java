@@ -23,6 +23,7 @@ import net.collegeman.phpinjava.*;
 import groovy.lang.*;
 import java.io.*;
 import java.lang.reflect.*;
+import java.util.*;
 
 public class GroovyPHP extends GroovyObjectSupport {
 	
@@ -44,22 +45,39 @@ public class GroovyPHP extends GroovyObjectSupport {
 		php = new PHP();
 	}
 	
+	/**
+	 * Groovy's hook for dynamic method calls. Calls to the public methods of <code>PHP</code> are
+	 * dispatched to the wrapped instance, and any other method name is called as a PHP function,
+	 * so that <code>php.my_function(arg)</code> works from Groovy.
+	 * @return The return value of the <code>PHP</code> method, or an instance of <code>GroovyPHPObject</code>
+	 * wrapping the return value of the PHP function.
+	 */
+	public Object invokeMethod(String name, Object args) {
+		Object[] arguments;
+		if (args == null)
+			arguments = new Object[0];
+		else if (args instanceof Object[])
+			arguments = (Object[]) args;
+		else
+			arguments = new Object[] { args };
+		
+		return invokeMethod(name, arguments);
+	}
+	
 	public Object invokeMethod(String name, Object ... args) {
+		if (args == null)
+			args = new Object[0];
+		
+		Method[] candidates = dispatch.get(name);
+		if (candidates == null)
+			return fx(name, args);
+		
+		Method m = select(candidates, args);
+		if (m == null)
+			throw new MissingMethodException(name, PHP.class, args);
+		
 		try {
-			if (args != null && args.length > 0) {
-				Class[] classes = new Class[args.length];
-				for (int i=0; i<args.length; i++) 
-					classes[i] = args[i].getClass();
-			
-				Method m = php.getClass().getMethod(name, classes);
-				return m.invoke(php, args);
-			}
-			else {
-				Method m = php.getClass().getMethod(name, null);
-				return m.invoke(php, args);
-			}
-		} catch (NoSuchMethodException e) {
-			throw new RuntimeException(e);
+			return m.invoke(php, m.isVarArgs() ? packVarArgs(m, args) : args);
 		} catch (IllegalAccessException e) {
 			throw new RuntimeException(e);
 		} catch (InvocationTargetException e) {
@@ -67,6 +85,98 @@ public class GroovyPHP extends GroovyObjectSupport {
 		}
 	}
 	
+	/**
+	 * The public methods of <code>PHP</code>, by name. Any other name is that of a PHP function.
+	 */
+	private static final Map<String, Method[]> dispatch = methodsByName();
+	
+	private static Map<String, Method[]> methodsByName() {
+		Map<String, List<Method>> found = new HashMap<String, List<Method>>();
+		for (Method m : PHP.class.getMethods()) {
+			if (m.getDeclaringClass() == Object.class)
+				continue;
+			List<Method> methods = found.get(m.getName());
+			if (methods == null)
+				found.put(m.getName(), methods = new ArrayList<Method>());
+			methods.add(m);
+		}
+		
+		Map<String, Method[]> dispatch = new HashMap<String, Method[]>();
+		for (Map.Entry<String, List<Method>> methods : found.entrySet())
+			dispatch.put(methods.getKey(), methods.getValue().toArray(new Method[methods.getValue().size()]));
+		return Collections.unmodifiableMap(dispatch);
+	}
+	
+	/**
+	 * Choose the first of <code>candidates</code> able to take <code>args</code>, preferring exact arity
+	 * over varargs. <code>null</code> is taken by any parameter of a reference type.
+	 */
+	private static Method select(Method[] candidates, Object[] args) {
+		for (Method m : candidates) {
+			Class<?>[] params = m.getParameterTypes();
+			if (!m.isVarArgs() && params.length == args.length && accepts(params, args, args.length))
+				return m;
+		}
+		for (Method m : candidates) {
+			Class<?>[] params = m.getParameterTypes();
+			if (m.isVarArgs() && args.length >= params.length - 1 && accepts(params, args, params.length - 1))
+				return m;
+		}
+		return null;
+	}
+	
+	private static boolean accepts(Class<?>[] params, Object[] args, int count) {
+		for (int i=0; i<count; i++) {
+			Class<?> param = params[i];
+			if (args[i] == null) {
+				if (param.isPrimitive())
+					return false;
+			}
+			else if (!wrap(param).isInstance(args[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static Class<?> wrap(Class<?> type) {
+		if (!type.isPrimitive())
+			return type;
+		else if (type == Integer.TYPE)
+			return Integer.class;
+		else if (type == Long.TYPE)
+			return Long.class;
+		else if (type == Boolean.TYPE)
+			return Boolean.class;
+		else if (type == Double.TYPE)
+			return Double.class;
+		else if (type == Float.TYPE)
+			return Float.class;
+		else if (type == Short.TYPE)
+			return Short.class;
+		else if (type == Byte.TYPE)
+			return Byte.class;
+		else
+			return Character.class;
+	}
+	
+	private static Object[] packVarArgs(Method m, Object[] args) {
+		Class<?>[] params = m.getParameterTypes();
+		int fixed = params.length - 1;
+		
+		// already packed by the caller
+		if (args.length == params.length && (args[fixed] == null || params[fixed].isInstance(args[fixed])))
+			return args;
+		
+		Object[] rest = (Object[]) Array.newInstance(params[fixed].getComponentType(), args.length - fixed);
+		System.arraycopy(args, fixed, rest, 0, rest.length);
+		
+		Object[] packed = new Object[params.length];
+		System.arraycopy(args, 0, packed, 0, fixed);
+		packed[fixed] = rest;
+		return packed;
+	}
+	
 	public GroovyPHPObject fx(String fxName, Object ... args) {
 		return new GroovyPHPObject(php.fx(fxName, args));
 	}
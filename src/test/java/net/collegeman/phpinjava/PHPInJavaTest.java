@@ -4,6 +4,8 @@ import junit.framework.*;
 import com.caucho.quercus.env.*;
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.*;
+import javax.script.*;
 
 import net.collegeman.phpinjava.groovy.*;
 
@@ -87,4 +89,951 @@ public class PHPInJavaTest extends TestCase {
 		assertEquals("Hello, world!", new GroovyPHP(new File(path)).toString());
 	}
 
-}
\ No newline at end of file
+	public void testPoolRestoresGlobals() {
+		PHPPool pool = new PHPPool("classpath:/com/faux/php/HelloWorldFx.php", 1);
+		
+		PHP php = pool.borrow();
+		php.set("greeting", "Hello, world!");
+		php.snippet("echo 'Foo bar!';");
+		CharSequence output = php.asCharSequence();
+		pool.release(php);
+		
+		PHP again = pool.borrow();
+		assertSame(php, again);
+		assertEquals("", again.toString());
+		
+		// a view of the output released with the instance never reads the next borrower's
+		again.snippet("echo 'Secret!!';");
+		try {
+			output.toString();
+			fail("Read output released to the pool");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		try {
+			output.charAt(0);
+			fail("Read output released to the pool");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		again.clear();
+		assertNull(again.get("greeting").getWrappedValue().toJavaObject());
+		assertEquals("Hello, world!", again.fx("repeat", "Hello, world!").toString());
+		pool.release(again);
+		
+		// closing the pool closes the instances it holds
+		pool.close();
+		try {
+			again.getEnv();
+			fail("Idle instance outlived its pool");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+	
+	public void testPoolBorrowTimeout() {
+		PHPPool pool = new PHPPool("classpath:/com/faux/php/HelloWorldFx.php", 1);
+		PHP php = pool.borrow();
+		try {
+			pool.borrow(10, TimeUnit.MILLISECONDS);
+			fail("Expected borrow to time out");
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		pool.release(php);
+		assertEquals(1, pool.getIdleCount());
+	}
+
+	public void testPageCacheSkipsReparsing() {
+		new PHP("classpath:/com/faux/php/HelloWorldFx.php");
+		long misses = PHP.getPageCache().getMissCount();
+		long hits = PHP.getPageCache().getHitCount();
+		
+		PHP php = new PHP("classpath:/com/faux/php/HelloWorldFx.php");
+		assertEquals("Hello, world!", php.fx("repeat", "Hello, world!").toString());
+		assertEquals(misses, PHP.getPageCache().getMissCount());
+		assertEquals(hits + 1, PHP.getPageCache().getHitCount());
+	}
+
+	public void testGlobalBatchReadAndWrite() {
+		Map<String, Object> globals = new HashMap<String, Object>();
+		globals.put("hello", "Hello");
+		globals.put("world", "world!");
+		
+		PHP php = new PHP().setAll(globals);
+		php.snippet("<?php $greeting = $hello . ', ' . $world;");
+		
+		Map<String, PHPObject> values = php.getAll("greeting", "hello");
+		assertEquals(Arrays.asList("greeting", "hello"), new ArrayList<String>(values.keySet()));
+		assertEquals("Hello, world!", values.get("greeting").toString());
+		assertEquals("Hello", values.get("hello").toString());
+	}
+
+	public void testExecuteFromDirectory() {
+		PHP php = new PHP("classpath:/net/collegeman/phpinjava/php");
+		php.getEnv().include("test.php");
+		assertTrue(php.fx("fx_in_lib").getWrappedValue().toBoolean());
+	}
+
+	public void testStreamOutput() throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		PHP php = PHP.streaming("classpath:/com/faux/php/HelloWorld.php", output);
+		assertEquals("Hello, world!", output.toString("UTF-8"));
+		assertEquals("", php.toString());
+		
+		StringWriter writer = new StringWriter();
+		php.setOutputChunkSize(4).execute(writer);
+		assertEquals("Hello, world!", writer.toString());
+		assertEquals("", php.toString());
+		
+		// a null second argument is a class loader again, not an output stream
+		try {
+			new PHP("classpath:/com/faux/php/HelloWorld.php", null);
+			fail("Took a null class loader");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testEnginesAreIndependent() {
+		PHPEngine engine = new PHPEngine.Builder()
+			.setIncludePath("/tmp/php-in-java")
+			.setPageCacheSize(8)
+			.build();
+		
+		PHP php = engine.create("classpath:/com/faux/php/HelloWorldFx.php");
+		assertSame(engine, php.getEngine());
+		assertEquals(1, engine.getPageCache().getSize());
+		assertEquals("/tmp/php-in-java", php.snippet("<?php echo ini_get('include_path');").toString());
+		
+		assertFalse("/tmp/php-in-java".equals(new PHP().snippet("<?php echo ini_get('include_path');").toString()));
+	}
+
+	public void testCompiledEngineFallsBackToInterpreter() {
+		File workDir = new File(System.getProperty("java.io.tmpdir"), "php-in-java-" + System.nanoTime());
+		PHPEngine engine = new PHPEngine.Builder()
+			.setCompile(true)
+			.setWorkDir(workDir)
+			.build();
+		
+		try {
+			assertTrue(workDir.isDirectory());
+			PHP php = engine.create("classpath:/com/faux/php/HelloWorldFx.php");
+			assertEquals("Hello, world!", php.fx("repeat", "Hello, world!").toString());
+			php.close();
+		} finally {
+			engine.close();
+			delete(workDir);
+		}
+	}
+
+	public void testFunctionAndMethodHandles() {
+		PHP php = new PHP("classpath:/com/faux/php/HelloWorldFx.php");
+		PHPFunction repeat = php.function("repeat");
+		assertEquals("Hello, world!", repeat.call("Hello, world!").toString());
+		assertEquals("Foo bar!", repeat.call("Foo bar!").toString());
+		
+		try {
+			php.function("no_such_function");
+			fail("Expected lookup to fail");
+		} catch (RuntimeException e) {
+			assertTrue(e.getCause() instanceof NoSuchMethodException);
+		}
+		
+		PHPObject repeater = new PHP("classpath:/com/faux/php/HelloWorldClass.php").newInstance("Repeater", "Hello, world!");
+		PHPMethod setMessage = repeater.method("setMessage");
+		PHPMethod repeatMethod = repeater.method("repeat");
+		assertEquals("Hello, world!", repeatMethod.call().toString());
+		setMessage.call("Foo bar!");
+		assertEquals("Foo bar!", repeatMethod.call().toString());
+	}
+
+	public void testMarshalling() {
+		PHP php = new PHP().snippet("<?php function describe($value) { return gettype($value); }");
+		assertEquals("integer", php.fx("describe", 42).toString());
+		assertEquals("double", php.fx("describe", 4.2).toString());
+		assertEquals("boolean", php.fx("describe", true).toString());
+		assertEquals("string", php.fx("describe", "42").toString());
+		assertEquals("array", php.fx("describe", new int[] { 4, 2 }).toString());
+		assertEquals("array", php.fx("describe", (Object) new String[] { "4", "2" }).toString());
+		assertEquals("array", php.fx("describe", Arrays.asList("4", "2")).toString());
+		
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("answer", 42);
+		map.put("items", Arrays.asList("a", "b", "c"));
+		php.set("data", map);
+		php.snippet("<?php $result = array('answer' => $data['answer'] + 1, 'count' => count($data['items']), 'first' => $data['items'][0], 'pi' => 3.5, 'nested' => array(1, 2));");
+		
+		PHPObject result = php.get("result");
+		assertEquals(43L, result.asMap().get("answer"));
+		assertEquals(3L, result.asMap().get("count"));
+		assertEquals("a", result.asMap().get("first"));
+		assertEquals(3.5, ((Double) result.asMap().get("pi")).doubleValue(), 0);
+		assertEquals(Arrays.asList((Object) 1L, 2L), ((PHPObject) result.asMap().get("nested")).asList());
+		assertEquals(5, result.asList().size());
+		assertEquals(42, php.fx("intval", "42").asLong());
+		assertEquals(4.2, php.fx("floatval", "4.2").asDouble(), 0);
+		assertTrue(php.fx("is_array", result).asBoolean());
+	}
+
+	public void testGroovyDispatch() {
+		GroovyPHP gphp = new GroovyPHP("classpath:/com/faux/php/HelloWorldFx.php");
+		
+		// PHP functions can be called as methods
+		assertEquals("Hello, world!", gphp.invokeMethod("repeat", (Object) new Object[] { "Hello, world!" }).toString());
+		
+		// methods of PHP are dispatched to the wrapped instance, nulls and subtypes included
+		gphp.invokeMethod("set", (Object) new Object[] { "message", null });
+		assertTrue(((PHPObject) gphp.invokeMethod("get", "message")).isNull());
+		gphp.invokeMethod("set", (Object) new Object[] { "message", new StringBuilder("Foo bar!") });
+		assertEquals("Foo bar!", gphp.invokeMethod("fx", "repeat", "Foo bar!").toString());
+		
+		// arguments are checked against the one method of that name, too
+		try {
+			gphp.invokeMethod("setTimeout", "soon", "please");
+			fail("Dispatched arguments of the wrong types");
+		} catch (groovy.lang.MissingMethodException e) {
+			// expected
+		}
+	}
+
+	public void testBatch() {
+		PHP php = new PHP("classpath:/com/faux/php/HelloWorldFx.php");
+		
+		List<Object[]> argsList = new ArrayList<Object[]>();
+		for (int i=0; i<100; i++)
+			argsList.add(new Object[] { "Message " + i });
+		argsList.set(50, new Object[0]);
+		
+		List<PHPBatchExecutor.Result> results = php.fxBatch("repeat", argsList, 4);
+		assertEquals(100, results.size());
+		for (int i=0; i<100; i++) {
+			if (i == 50)
+				continue;
+			assertFalse(results.get(i).isFailed());
+			assertEquals("Message " + i, results.get(i).getValue());
+		}
+		
+		// arrays come back as plain Java, safe to read after their instance has moved on
+		Map<Object, Object> array = new LinkedHashMap<Object, Object>();
+		array.put(0L, "Foo");
+		array.put(1L, "Bar");
+		List<Object[]> arrays = Collections.singletonList(new Object[] { new ArrayList<Object>(Arrays.asList("Foo", "Bar")) });
+		assertEquals(array, php.fxBatch("repeat", arrays, 4).get(0).getValue());
+		
+		List<PHPBatchExecutor.Result> missing = php.fxBatch("no_such_function", argsList.subList(0, 3), 2);
+		assertTrue(missing.get(0).isFailed());
+		assertTrue(missing.get(2).isFailed());
+	}
+
+	public void testWatchReloadsScript() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "php-in-java-watch-" + System.nanoTime());
+		dir.mkdirs();
+		PHP php = null;
+		try {
+			File script = new File(dir, "version.php");
+			String logging = " function open_log($path) { global $log; $log = fopen($path, 'w'); }" +
+				" function log_line($line) { global $log; fwrite($log, $line); fflush($log); }" +
+				" function closed() { file_put_contents(dirname(__FILE__).'/closed.txt', 'closed ', FILE_APPEND); }" +
+				" register_shutdown_function('closed');";
+			writeFile(script, "<?php function version() { return 1; }" + logging);
+			
+			final CountDownLatch reloads = new CountDownLatch(1);
+			php = new PHP(script) {
+				void reload() {
+					super.reload();
+					reloads.countDown();
+				}
+			}.watch();
+			php.set("kept", "Foo bar!");
+			File log = new File(dir, "log.txt");
+			php.fx("open_log", log.getAbsolutePath());
+			php.fx("log_line", "before ");
+			PHPFunction version = php.function("version");
+			assertEquals(1L, version.call().asLong());
+			
+			writeFile(script, "<?php function version() { return 2; }" + logging);
+			assertTrue(reloads.await(30, TimeUnit.SECONDS));
+			php.unwatch();
+			
+			// a reload that supersedes one not yet swapped in closes it
+			File closed = new File(dir, "closed.txt");
+			php.reload();
+			assertTrue(closed.exists());
+			assertEquals(2L, php.fx("version").asLong());
+			assertEquals("Foo bar!", php.get("kept").toString());
+			
+			// files the previous version opened stay open
+			php.fx("log_line", "after");
+			assertEquals("before after", new String(java.nio.file.Files.readAllBytes(log.toPath()), "UTF-8"));
+			
+			// handles on the previous version are stale
+			try {
+				version.call();
+				fail("Called a function of a replaced environment");
+			} catch (IllegalStateException e) {
+				// expected
+			}
+			
+			// a broken script leaves the previous version in service
+			writeFile(script, "<?php function version( { return 3; }");
+			php.reload();
+			assertEquals(2L, php.fx("version").asLong());
+		} finally {
+			if (php != null)
+				php.close();
+			delete(dir);
+		}
+	}
+	
+	private static void writeFile(File file, String content) throws IOException {
+		long lastModified = file.lastModified();
+		FileWriter writer = new FileWriter(file);
+		writer.write(content);
+		writer.close();
+		
+		// make sure the change is visible at the resolution of the file system's timestamps
+		if (file.lastModified() <= lastModified + 1000)
+			file.setLastModified(lastModified + 2000);
+	}
+
+	public void testSnapshotAndRestore() {
+		PHP php = new PHP("classpath:/com/faux/php/HelloWorldFx.php");
+		php.snippet("<?php $list = array(1, 2, 3);");
+		PHPSnapshot snapshot = php.snapshot();
+		
+		php.snippet("<?php $list[] = 4; $added = 'Foo';");
+		php.getEnv().include("Definitions.php");
+		assertEquals(4, php.get("list").asList().size());
+		assertEquals(1L, php.fx("added").asLong());
+		php.newInstance("Added");
+		
+		php.restore(snapshot);
+		assertEquals(Arrays.asList(1L, 2L, 3L), php.get("list").asList());
+		assertTrue(php.get("added").isNull());
+		assertEquals("Hello", php.fx("repeat", "Hello").toString());
+		try {
+			php.fx("added");
+			fail("Function defined after the snapshot survived its restore");
+		} catch (RuntimeException e) {}
+		try {
+			php.newInstance("Added");
+			fail("Class defined after the snapshot survived its restore");
+		} catch (RuntimeException e) {}
+		
+		// a snapshot can be restored any number of times
+		php.snippet("<?php eval('function added() { return 2; }');");
+		assertEquals(2L, php.fx("added").asLong());
+		php.restore(snapshot);
+		
+		try {
+			new PHP().restore(snapshot);
+			fail("Snapshot restored into another instance");
+		} catch (IllegalArgumentException e) {}
+	}
+
+	public void testAsync() throws Exception {
+		PHP php = new PHP();
+		php.snippet("<?php function spin() { while (true) { } } function answer($of) { return $of * 2; }");
+		
+		AsyncPHP async = new AsyncPHP(php);
+		try {
+			CompletableFuture<PHPObject> first = async.fx("answer", 21);
+			CompletableFuture<PHPObject> second = async.fx("answer", 50);
+			assertEquals(142L, first.thenCombine(second, (a, b) -> a.asLong() + b.asLong()).get(10, TimeUnit.SECONDS).longValue());
+			
+			// a runaway script is stopped, and the instance goes on serving
+			async.setTimeout(200, TimeUnit.MILLISECONDS);
+			try {
+				async.fx("spin").get(10, TimeUnit.SECONDS);
+				fail("Runaway script didn't time out");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof TimeoutException);
+			}
+			assertEquals(84L, async.fx("answer", 42).get(10, TimeUnit.SECONDS).asLong());
+		} finally {
+			async.shutdown();
+		}
+		
+		AsyncPHP pooled = new AsyncPHP(new PHPPool("classpath:/com/faux/php/HelloWorldFx.php", 1));
+		try {
+			assertEquals("Hello", pooled.fx("repeat", "Hello").get(10, TimeUnit.SECONDS).toString());
+			
+			// an instance stopped part way through is discarded before the call fails
+			final PHP[] spun = new PHP[1];
+			pooled.setTimeout(200, TimeUnit.MILLISECONDS);
+			try {
+				pooled.submit(p -> {
+					spun[0] = p;
+					return p.snippet("<?php while (true) { }");
+				}).get(10, TimeUnit.SECONDS);
+				fail("Runaway script didn't time out");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof TimeoutException);
+			}
+			assertNotSame(spun[0], pooled.submit(p -> p).get(10, TimeUnit.SECONDS));
+			
+			// errors fail the call, rather than leave it waiting forever
+			pooled.setTimeout(0, TimeUnit.MILLISECONDS);
+			try {
+				pooled.submit(p -> { throw new AssertionError("Deep enough"); }).get(10, TimeUnit.SECONDS);
+				fail("Error didn't fail the call");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof AssertionError);
+			}
+		} finally {
+			pooled.shutdown();
+		}
+		
+		// and so does failing to borrow an instance
+		PHPPool closed = new PHPPool("classpath:/com/faux/php/HelloWorldFx.php", 1);
+		closed.close();
+		AsyncPHP unavailable = new AsyncPHP(closed);
+		try {
+			unavailable.fx("repeat", "Hello").get(10, TimeUnit.SECONDS);
+			fail("Borrowed from a closed pool");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		} finally {
+			unavailable.shutdown();
+		}
+	}
+
+	public void testMetrics() throws Exception {
+		PHPMetrics metrics = new PHPMetrics();
+		PHPEngine engine = new PHPEngine.Builder().addListener(metrics).build();
+		
+		PHP php = engine.create();
+		php.snippet("<?php $big = str_repeat('x', 1000); echo 'Hello'; function twice($n) { return $n * 2; } class Counter { function next() { return 1; } }");
+		php.flush();
+		assertEquals(1, metrics.getParseCount());
+		assertEquals(1, metrics.getExecuteCount());
+		assertEquals("Hello".length(), metrics.getOutputBytes());
+		assertTrue(metrics.getMemoryEstimate() > 2000);
+		
+		php.fx("twice", 2);
+		php.function("twice").call(3);
+		try {
+			php.fx("no_such_function");
+		} catch (RuntimeException e) {}
+		php.newInstance("Counter").invokeMethod("next");
+		
+		PHPMetrics.CallStats twice = metrics.getFunctionStats("twice");
+		assertEquals(2, twice.getCount());
+		assertEquals(0, twice.getFailures());
+		assertEquals(1, metrics.getFunctionStats("no_such_function").getFailures());
+		assertEquals("Counter::next", metrics.getMethodStats().get(0).getName());
+		
+		metrics.register("test");
+		try {
+			javax.management.ObjectName name = new javax.management.ObjectName("net.collegeman.phpinjava:type=PHPMetrics,name=\"test\"");
+			assertEquals(1L, java.lang.management.ManagementFactory.getPlatformMBeanServer().getAttribute(name, "ParseCount"));
+		} finally {
+			metrics.unregister();
+		}
+		
+		// nothing is measured once the listener is gone
+		engine.removeListener(metrics);
+		php.fx("twice", 4);
+		assertEquals(2, metrics.getFunctionStats("twice").getCount());
+	}
+
+	public void testPrecompile() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "php-in-java-precompile-" + System.nanoTime());
+		PHPEngine engine = new PHPEngine.Builder().build();
+		try {
+			new File(dir, "lib").mkdirs();
+			writeFile(new File(dir, "index.php"), "<?php include('lib/functions.php');");
+			writeFile(new File(dir, "lib/functions.php"), "<?php function answer() { return 42; }");
+			
+			List<String> pages = new PHPPrecompiler().precompile(dir);
+			assertEquals(Arrays.asList("index.php", "lib/functions.php"), pages);
+			assertTrue(new File(dir, PHPPrecompiler.INDEX).isFile());
+			
+			// a precompiled directory is parsed up front
+			PHP php = engine.create(dir.getAbsolutePath());
+			assertEquals(2 + 1, engine.getPageCache().getSize()); // plus the empty page the environment starts from
+			php.getEnv().include("index.php");
+			assertEquals(42L, php.fx("answer").asLong());
+			php.close();
+			
+			// every broken page is reported
+			writeFile(new File(dir, "broken.php"), "<?php function broken( {");
+			try {
+				new PHPPrecompiler().precompile(dir);
+				fail("Broken page precompiled");
+			} catch (RuntimeException e) {
+				assertTrue(e.getMessage().contains("broken.php"));
+			}
+		} finally {
+			engine.close();
+			delete(dir);
+		}
+	}
+
+	public void testRemoteScriptCache() throws Exception {
+		final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+		final String[] version = { "v1", "Remote" };
+		com.sun.net.httpserver.HttpServer server = com.sun.net.httpserver.HttpServer.create(new java.net.InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/remote.php", exchange -> {
+			String etag = exchange.getRequestHeaders().getFirst("If-None-Match");
+			requests.add(etag == null ? "GET" : "GET " + etag);
+			if (version[0] == null) {
+				exchange.sendResponseHeaders(503, -1);
+			}
+			else if (("\"" + version[0] + "\"").equals(etag)) {
+				exchange.sendResponseHeaders(304, -1);
+			}
+			else {
+				byte[] body = ("<?php function remote() { return '" + version[1] + "'; }").getBytes("UTF-8");
+				exchange.getResponseHeaders().set("ETag", "\"" + version[0] + "\"");
+				exchange.sendResponseHeaders(200, body.length);
+				exchange.getResponseBody().write(body);
+			}
+			exchange.close();
+		});
+		server.start();
+		
+		File dir = new File(System.getProperty("java.io.tmpdir"), "php-in-java-remote-" + System.nanoTime());
+		PHPEngine engine = new PHPEngine.Builder().setScriptCacheDir(dir).build();
+		String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/remote.php";
+		try {
+			assertEquals("Remote", engine.create(url).fx("remote").toString());
+			
+			// within the revalidation interval, the origin isn't asked again
+			engine.create(url);
+			assertEquals(Arrays.asList("GET"), requests);
+			
+			engine.getScriptCache().setRevalidateAfter(0, TimeUnit.MILLISECONDS);
+			assertEquals("Remote", engine.create(url).fx("remote").toString());
+			assertEquals(Arrays.asList("GET", "GET \"v1\""), requests);
+			
+			// with the origin failing, the local copy is used, and the origin tried again after the retry interval
+			version[0] = null;
+			assertEquals("Remote", engine.create(url).fx("remote").toString());
+			engine.getScriptCache().setRevalidateAfter(1, TimeUnit.HOURS).setRetryAfter(0, TimeUnit.MILLISECONDS);
+			version[0] = "v2";
+			version[1] = "Remote again";
+			assertEquals("Remote again", engine.create(url).fx("remote").toString());
+			assertEquals(Arrays.asList("GET", "GET \"v1\"", "GET \"v1\"", "GET \"v1\""), requests);
+			engine.getScriptCache().setRevalidateAfter(0, TimeUnit.MILLISECONDS);
+		} finally {
+			server.stop(0);
+		}
+		
+		try {
+			// with the origin down, the local copy is used
+			assertEquals("Remote again", engine.create(url).fx("remote").toString());
+			
+			// unless someone else could have written it
+			if (java.nio.file.FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+				assertEquals("rwx------", java.nio.file.attribute.PosixFilePermissions.toString(java.nio.file.Files.getPosixFilePermissions(dir.toPath())));
+				java.nio.file.Files.setPosixFilePermissions(dir.toPath(), java.nio.file.attribute.PosixFilePermissions.fromString("rwxrwxrwx"));
+				try {
+					engine.create(url);
+					fail("Executed a script in a world-writable directory");
+				} catch (RuntimeException e) {
+					assertTrue(e.getMessage().contains("refusing to execute"));
+				}
+			}
+		} finally {
+			engine.close();
+			delete(dir);
+		}
+	}
+
+	public void testLoadFromJarAndMappedFile() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "php-in-java-load-" + System.nanoTime());
+		dir.mkdirs();
+		try {
+			// a script packed in a jar
+			File jar = new File(dir, "scripts.jar");
+			java.util.jar.JarOutputStream out = new java.util.jar.JarOutputStream(new FileOutputStream(jar));
+			out.putNextEntry(new java.util.jar.JarEntry("jarred/Hello.php"));
+			out.write("<?php function jarred() { return 'Hello from a jar'; }".getBytes("UTF-8"));
+			out.close();
+			
+			java.net.URLClassLoader loader = new java.net.URLClassLoader(new java.net.URL[] { jar.toURI().toURL() }, null);
+			PHP jarred = new PHP("classpath:/jarred/Hello.php", loader);
+			assertEquals("Hello from a jar", jarred.fx("jarred").toString());
+			jarred.close();
+			loader.close();
+			
+			// a script large enough to be memory-mapped
+			StringBuilder big = new StringBuilder("<?php $table = array(");
+			for (int i = 0; big.length() < PHPPageCache.MAP_THRESHOLD; i++)
+				big.append("'key").append(i).append("' => 'value").append(i).append("',\n");
+			big.append("); function lookup($key) { global $table; return $table[$key]; }");
+			File script = new File(dir, "big.php");
+			writeFile(script, big.toString());
+			PHP mapped = new PHP(script);
+			assertEquals("value1000", mapped.fx("lookup", "key1000").toString());
+			mapped.close();
+		} finally {
+			delete(dir);
+		}
+	}
+
+	public void testOutputCapture() throws Exception {
+		// output larger than a buffer spans several of them
+		PHP php = new PHP();
+		php.snippet("<?php for ($i = 0; $i < 10000; $i++) echo 'x'; echo \"caf\\xe9\";");
+		CharSequence output = php.asCharSequence();
+		assertEquals(10004, output.length());
+		assertEquals("caf\u00e9", output.subSequence(10000, 10004).toString());
+		assertEquals(php.toString(), output.toString());
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		php.writeTo(bytes);
+		assertEquals(10004, bytes.size());
+		
+		// past the limit, output is dropped
+		php.clear().setMaxOutput(10, PHP.Overflow.TRUNCATE);
+		php.snippet("<?php echo 'Hello, world!';");
+		assertEquals("Hello, wor", php.toString());
+		assertTrue(php.isOutputTruncated());
+		assertFalse(php.clear().isOutputTruncated());
+		
+		// or moved to disk
+		php.setMaxOutput(10, PHP.Overflow.SPILL_TO_DISK);
+		php.snippet("<?php echo 'Hello, ';").snippet("<?php echo 'world!';");
+		assertEquals("Hello, world!", php.toString());
+		assertFalse(php.isOutputTruncated());
+		bytes.reset();
+		php.writeTo(bytes);
+		assertEquals("Hello, world!", bytes.toString("ISO-8859-1"));
+		assertEquals("", php.clear().toString());
+	}
+
+	public void testEmbeddedRequest() throws Exception {
+		PHP php = new PHP();
+		php.snippet("<?php header('Content-Type: text/plain'); echo $_SERVER['SERVER_NAME'];");
+		assertEquals("localhost", php.toString());
+		
+		// bound to a request of the caller's, output goes to its response
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		EmbeddedResponse response = new EmbeddedResponse(output);
+		PHP bound = new PHP("classpath:/com/faux/php/HelloWorld.php", new EmbeddedRequest(), response);
+		bound.snippet("<?php header('HTTP/1.1 404 Not Found');");
+		assertEquals("Hello, world!", output.toString("UTF-8"));
+		assertEquals(404, response.getStatus());
+	}
+
+	public void testTimeout() throws Exception {
+		PHP php = new PHP();
+		php.snippet("<?php function spin() { while (true) { } } function answer($of) { return $of * 2; } " +
+			"function late() { $e = new Exception('Too late'); usleep(300000); throw $e; }");
+		PHPSnapshot loaded = php.snapshot();
+		
+		php.setTimeout(100, TimeUnit.MILLISECONDS);
+		try {
+			php.fx("spin");
+			fail("Runaway function didn't time out");
+		} catch (PHPTimeoutException e) {
+			assertEquals(100, e.getTimeout());
+		}
+		assertTrue(php.isPoisoned());
+		assertEquals(84L, php.fx("answer", 42).asLong());
+		assertFalse(php.restore(loaded).isPoisoned());
+		
+		// a call that fails late, but not for lack of time, fails as it would have anyway
+		try {
+			php.fx("late");
+			fail("Exception wasn't thrown");
+		} catch (PHPTimeoutException e) {
+			fail("Late exception reported as a timeout");
+		} catch (RuntimeException e) {
+			assertFalse(php.isPoisoned());
+		}
+		
+		// a deadline for a single piece of work, shared by all the calls it makes
+		php.setTimeout(0, TimeUnit.MILLISECONDS);
+		try {
+			php.withTimeout(100, TimeUnit.MILLISECONDS, p -> p.snippet("<?php spin();"));
+			fail("Runaway snippet didn't time out");
+		} catch (PHPTimeoutException e) {
+			assertEquals(100, e.getTimeout());
+		}
+		php.close();
+		
+		// a pool doesn't lend out an instance that timed out again
+		File script = new File(System.getProperty("java.io.tmpdir"), "php-in-java-spin-" + System.nanoTime() + ".php");
+		PHPEngine engine = new PHPEngine.Builder().setTimeout(100, TimeUnit.MILLISECONDS).build();
+		try {
+			writeFile(script, "<?php function spin() { while (true) { } }");
+			PHPPool pool = new PHPPool(engine, script.getAbsolutePath(), PHP.class.getClassLoader(), 1);
+			PHP pooled = pool.borrow();
+			try {
+				pooled.fx("spin");
+				fail("Runaway function didn't time out");
+			} catch (PHPTimeoutException e) {
+				pool.release(pooled);
+			}
+			assertEquals(0, pool.getIdleCount());
+			PHP fresh = pool.borrow();
+			assertNotSame(pooled, fresh);
+			pool.release(fresh);
+			pool.close();
+		} finally {
+			engine.close();
+			script.delete();
+		}
+	}
+
+	public void testStatCache() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "php-in-java-stat-" + System.nanoTime());
+		// instances rooted at the same directory share a cache, which never revalidates here
+		PHPEngine engine = new PHPEngine.Builder().setStatRevalidateAfter(0, TimeUnit.MILLISECONDS).build();
+		try {
+			new File(dir, "lib").mkdirs();
+			writeFile(new File(dir, "index.php"), "<?php include('lib/version.php');");
+			writeFile(new File(dir, "lib/version.php"), "<?php function version() { return 1; }");
+		
+			PHPStatCache cache = engine.getStatCache(dir);
+			assertSame(cache, engine.getStatCache(new File(dir, "lib/..")));
+		
+			PHP php = engine.create(dir.getAbsolutePath());
+			php.getEnv().include("index.php");
+			assertEquals(1L, php.fx("version").asLong());
+			long misses = cache.getMissCount();
+			assertTrue(misses > 0);
+			php.close();
+		
+			// a second instance includes the same files without asking the file system
+			php = engine.create(dir.getAbsolutePath());
+			php.getEnv().include("index.php");
+			assertEquals(1L, php.fx("version").asLong());
+			assertEquals(misses, cache.getMissCount());
+			assertTrue(cache.getHitCount() > 0);
+			php.close();
+		
+			// so a change goes unnoticed until the cache is cleared
+			String changed = "<?php function version() { return 2; } // changed";
+			writeFile(new File(dir, "lib/version.php"), changed);
+			assertTrue(cache.getRoot().lookup("lib/version.php").getLength() < changed.length());
+			cache.clear();
+			assertEquals(changed.length(), cache.getRoot().lookup("lib/version.php").getLength());
+			
+			// files written through the cache are checked again once closed, whatever was asked of them meanwhile
+			com.caucho.vfs.Path written = cache.getRoot().lookup("lib/written.txt");
+			com.caucho.vfs.WriteStream out = written.openWrite();
+			out.print("Hello");
+			out.flush();
+			assertEquals(5, written.getLength());
+			out.print(", world!");
+			out.close();
+			assertEquals(13, cache.getRoot().lookup("lib/written.txt").getLength());
+		} finally {
+			engine.close();
+			delete(dir);
+		}
+	}
+
+	public void testScriptEngine() throws Exception {
+		ScriptEngine engine = new ScriptEngineManager().getEngineByName("php-in-java");
+		assertTrue(engine instanceof PHPScriptEngine);
+		
+		// the engine scope is the global variables
+		engine.put("name", "World");
+		StringWriter output = new StringWriter();
+		engine.getContext().setWriter(output);
+		assertEquals(42L, engine.eval("<?php echo 'Hello, '.$name; $answer = 42; return $answer;"));
+		assertEquals("Hello, World", output.toString());
+		assertEquals(42L, engine.get("answer"));
+		
+		// compiled scripts are parsed once, and run as often as needed
+		CompiledScript twice = ((Compilable) engine).compile("<?php return $x * 2;");
+		Bindings bindings = engine.createBindings();
+		for (long x = 1; x <= 3; x++) {
+			bindings.put("x", x);
+			assertEquals(x * 2, twice.eval(bindings));
+		}
+		
+		// functions and methods defined by one script are there for the next
+		engine.eval("<?php function add($a, $b) { return $a + $b; } class Counter { var $n = 0; function inc() { return ++$this->n; } }");
+		Invocable invocable = (Invocable) engine;
+		assertEquals(5L, invocable.invokeFunction("add", 2, 3));
+		Object counter = engine.eval("<?php return new Counter();");
+		invocable.invokeMethod(counter, "inc");
+		assertEquals(2L, invocable.invokeMethod(counter, "inc"));
+		try {
+			invocable.invokeFunction("no_such_function");
+			fail("Undefined function invoked");
+		} catch (NoSuchMethodException e) {
+		}
+		
+		// bindings given to a single call are the engine scope of that call only
+		Bindings call = new SimpleBindings();
+		call.put("secret", "Foo");
+		assertEquals("Foo bar!", engine.eval("<?php $shout = $secret.' bar!'; $secret = 'Bar'; return $shout;", call));
+		assertEquals("Bar", call.get("secret"));
+		assertEquals("Foo bar!", call.get("shout"));
+		assertFalse((Boolean) engine.eval("<?php return isset($secret) || isset($shout);"));
+		engine.put("secret", "Baz");
+		assertEquals("Bar", engine.eval("<?php return $secret;", call));
+		assertEquals("Baz", engine.eval("<?php return $secret;"));
+		
+		Adder adder = invocable.getInterface(Adder.class);
+		assertEquals(7, adder.add(3, 4));
+		assertEquals(adder, adder);
+		assertFalse(adder.equals(invocable.getInterface(Adder.class)));
+		assertEquals(System.identityHashCode(adder), adder.hashCode());
+		assertTrue(adder.toString().startsWith(Adder.class.getName()));
+		
+		// PHP's null comes back as the default of a primitive return type
+		engine.eval("<?php function nothing() { return null; } function none() { }");
+		Nothing nothing = invocable.getInterface(Nothing.class);
+		assertEquals(0, nothing.nothing());
+		assertFalse(nothing.none());
+		try {
+			invocable.getInterface(String.class);
+			fail("Implemented a class");
+		} catch (IllegalArgumentException e) {
+		}
+		try {
+			invocable.getInterface(counter, null);
+			fail("Implemented nothing");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+	
+	public interface Adder {
+		int add(int a, int b);
+	}
+	
+	public interface Nothing {
+		int nothing();
+		boolean none();
+	}
+
+	public void testIteration() {
+		PHP php = new PHP().snippet("<?php " +
+			"function squares($n) { $a = array(); for ($i = 1; $i <= $n; $i++) $a['n'.$i] = $i * $i; return $a; } " +
+			"class Counting implements Iterator { " +
+			"  var $i = 0; var $reached = 0; " +
+			"  function rewind() { $this->i = 0; } " +
+			"  function valid() { return true; } " +
+			"  function current() { $this->reached = $this->i; return $this->i; } " +
+			"  function key() { return $this->i; } " +
+			"  function next() { $this->i++; } " +
+			"} " +
+			"class Letters implements IteratorAggregate { function getIterator() { return new ArrayIterator(array('a', 'b', 'c')); } }");
+		
+		PHPObject squares = php.fx("squares", 1000);
+		long sum = 0;
+		for (Iterator<Object> values = squares.iterator(); values.hasNext(); )
+			sum += (Long) values.next();
+		assertEquals(333833500L, sum);
+		assertEquals(333833500L, squares.stream().mapToLong(value -> (Long) value).sum());
+		
+		final Map<Object, Object> entries = new LinkedHashMap<Object, Object>();
+		php.fx("squares", 3).forEachEntry((key, value) -> entries.put(key, value));
+		assertEquals("{n1=1, n2=4, n3=9}", entries.toString());
+		
+		// PHP iterators are pulled from only as far as the stream goes, even when they never end
+		PHPObject counting = php.newInstance("Counting");
+		assertEquals(Arrays.asList(0L, 1L, 2L), counting.stream().limit(3).collect(java.util.stream.Collectors.toList()));
+		assertEquals(2L, counting.getProperty("reached").asLong());
+		
+		assertEquals(Arrays.asList("a", "b", "c"), php.newInstance("Letters").stream().collect(java.util.stream.Collectors.toList()));
+		
+		try {
+			new PHPObject(php.getEnv(), LongValue.create(1)).iterator();
+			fail("Iterated over a number");
+		} catch (IllegalStateException e) {
+		}
+	}
+
+	public void testSharedDefinitions() throws Exception {
+		File script = new File(System.getProperty("java.io.tmpdir"), "php-in-java-classes-" + System.nanoTime() + ".php");
+		PHPEngine engine = new PHPEngine.Builder().build();
+		try {
+			writeFile(script, "<?php " +
+				"class Base { static $label = 'base'; function hello() { return 'hello from '.get_class($this); } } " +
+				"class Greeter extends Base { static $count = 0; function greet($who) { self::$count++; return 'Hello, '.$who; } } " +
+				"class Registry { static $items = array(); } " +
+				"function greet($who) { $greeter = new Greeter(); return $greeter->greet($who); } " +
+				"function greetings() { return Greeter::$count; }");
+		
+			PHP first = engine.create(script.getAbsolutePath());
+			PHP second = engine.create(script.getAbsolutePath());
+		
+			// classes are built once, by the first instance, and shared with the next
+			assertSame(first.getEnv().findClass("Greeter"), second.getEnv().findClass("Greeter"));
+			assertSame(first.getEnv().findClass("Base"), second.getEnv().findClass("Base"));
+			assertEquals("hello from Greeter", second.newInstance("Greeter").invokeMethod("hello").toString());
+		
+			// but not when a static property holds an array, which each instance must have for itself
+			assertNotSame(first.getEnv().findClass("Registry"), second.getEnv().findClass("Registry"));
+		
+			// and static properties still belong to each instance
+			assertEquals("Hello, World", first.fx("greet", "World").toString());
+			first.fx("greet", "again");
+			assertEquals(2L, first.fx("greetings").asLong());
+			assertEquals(0L, second.fx("greetings").asLong());
+		
+			// restoring a snapshot keeps the classes built so far
+			PHPPool pool = new PHPPool(engine, script.getAbsolutePath(), PHP.class.getClassLoader(), 1);
+			PHP pooled = pool.borrow();
+			pooled.fx("greet", "pool");
+			pool.release(pooled);
+			assertSame(pooled, pool.borrow());
+			assertSame(first.getEnv().findClass("Greeter"), pooled.getEnv().findClass("Greeter"));
+			assertEquals(0L, pooled.fx("greetings").asLong());
+			pool.release(pooled);
+			pool.close();
+			first.close();
+			second.close();
+		} finally {
+			engine.close();
+			script.delete();
+		}
+	}
+
+	public void testPrecompileFromJar() throws Exception {
+		File dir = new File(System.getProperty("java.io.tmpdir"), "php-in-java-precompile-jar-" + System.nanoTime());
+		PHPEngine engine = new PHPEngine.Builder().setPageCacheSize(1).build();
+		try {
+			new File(dir, "php/lib").mkdirs();
+			writeFile(new File(dir, "php/index.php"), "<?php include('lib/functions.php');");
+			writeFile(new File(dir, "php/lib/functions.php"), "<?php function answer() { return 42; }");
+			new PHPPrecompiler().precompile(new File(dir, "php"));
+			
+			// package the precompiled directory the way a build would
+			File jar = new File(dir, "php.jar");
+			java.util.jar.JarOutputStream out = new java.util.jar.JarOutputStream(new FileOutputStream(jar));
+			for (String name : new String[] { "php/", "php/lib/", "php/" + PHPPrecompiler.INDEX, "php/index.php", "php/lib/functions.php" }) {
+				out.putNextEntry(new java.util.jar.JarEntry(name));
+				if (!name.endsWith("/"))
+					out.write(java.nio.file.Files.readAllBytes(new File(dir, name).toPath()));
+			}
+			out.close();
+			
+			java.net.URLClassLoader loader = new java.net.URLClassLoader(new java.net.URL[] { jar.toURI().toURL() }, null);
+			PHP php = engine.create("classpath:/php", loader);
+			php.getEnv().include("index.php");
+			assertEquals(42L, php.fx("answer").asLong());
+			
+			// preloaded pages stay put while other pages come and go
+			int pinned = engine.getPageCache().getSize();
+			assertTrue(pinned >= 2);
+			php.snippet("<?php function one() { return 1; }");
+			php.snippet("<?php function two() { return 2; }");
+			assertEquals(pinned, engine.getPageCache().getSize());
+			php.close();
+			loader.close();
+		} finally {
+			engine.close();
+			delete(dir);
+		}
+	}
+	
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null) {
+			for (File child : files)
+				delete(child);
+		}
+		file.delete();
+	}
+
+}
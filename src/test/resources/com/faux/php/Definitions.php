@@ -0,0 +1,8 @@
+<?php
+
+function added() {
+	return 1;
+}
+
+class Added {
+}